@@ -0,0 +1,222 @@
+package ie.atu.sw;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The cipher as a library, for programs that want to encrypt in-process instead
+ * of running the application. Nothing here reads from or prints to the console;
+ * problems are reported with exceptions. One cipher can be used by many threads
+ * at once.
+ *
+ * Texts and buffers are encrypted into the original single-matrix format, the
+ * same as the files written by the menu. Channels are encrypted into the block
+ * format, because a stream cannot be transposed as one matrix until its end is
+ * known, see {@link BlockFormat}.
+ */
+public class AdfgvxCipher {
+	private KeyPlan plan;
+	private int blockSize; 		// For directories: 0 for the original format.
+	private boolean checksums; 	// For directories: write CRC32C checksums.
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Constructor - a new cipher with the given key.
+	 *
+	 * @param key - 4 to 15 different letters and digits.
+	 * @throws IllegalArgumentException - if the key is not valid.
+	 */
+	public AdfgvxCipher(String key) {
+		String keyText = key.trim().toUpperCase();
+		String problem = Key.problemWith(keyText);
+		if (problem != null) {
+			throw new IllegalArgumentException(problem);
+		}
+		this.plan = new KeyPlan(keyText.toCharArray());
+	}
+
+	/**
+	 * Encrypts a text. Only its letters are kept, in uppercase.
+	 *
+	 * @param plaintext - the text to encrypt.
+	 * @return - the ADFGVX letters.
+	 */
+	public String encrypt(CharSequence plaintext) {
+		byte[] letters = lettersOf(plaintext);
+		return new String(plan.encryptMatrix(letters, 0, letters.length), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Decrypts a text encrypted by {@link #encrypt(CharSequence)}.
+	 *
+	 * @param ciphertext - the ADFGVX letters; anything else is ignored.
+	 * @return - the plaintext letters.
+	 * @throws IllegalArgumentException - if a letter is not one of ADFGVX.
+	 */
+	public String decrypt(CharSequence ciphertext) {
+		byte[] letters = lettersOf(ciphertext);
+		return new String(plan.decryptMatrix(letters, 0, letters.length), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Encrypts the remaining bytes of a buffer, read as ASCII or UTF-8 text. Only
+	 * the letters are kept, in uppercase. The buffer is read to its limit.
+	 *
+	 * @param plaintext - the text to encrypt.
+	 * @return - a new buffer holding the ADFGVX letters.
+	 */
+	public ByteBuffer encrypt(ByteBuffer plaintext) {
+		byte[] letters = lettersOf(plaintext);
+		return ByteBuffer.wrap(plan.encryptMatrix(letters, 0, letters.length));
+	}
+
+	/**
+	 * Decrypts the remaining bytes of a buffer encrypted by
+	 * {@link #encrypt(ByteBuffer)}. The buffer is read to its limit.
+	 *
+	 * @param ciphertext - the ADFGVX letters; anything else is ignored.
+	 * @return - a new buffer holding the plaintext letters.
+	 * @throws IllegalArgumentException - if a letter is not one of ADFGVX.
+	 */
+	public ByteBuffer decrypt(ByteBuffer ciphertext) {
+		byte[] letters = lettersOf(ciphertext);
+		return ByteBuffer.wrap(plan.decryptMatrix(letters, 0, letters.length));
+	}
+
+	/**
+	 * Encrypts a channel into another in the block format, a batch at a time, until
+	 * the input ends. Neither channel is closed.
+	 *
+	 * @param plaintext - the text to encrypt.
+	 * @param out       - receives the encrypted text.
+	 * @return - the number of letters encrypted.
+	 * @throws IOException - if a channel cannot be read or written.
+	 */
+	public long encrypt(ReadableByteChannel plaintext, WritableByteChannel out) throws IOException {
+		OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(out), 1024 * 1024);
+		long length = BlockFormat.encrypt(Channels.newInputStream(plaintext), stream, plan,
+				blockSize > 0 ? blockSize : BlockFormat.DEFAULT_BLOCK_SIZE, checksums);
+		stream.flush();
+		return length;
+	}
+
+	/**
+	 * Decrypts a channel in the block format into another. Neither channel is
+	 * closed.
+	 *
+	 * @param ciphertext - the encrypted text.
+	 * @param out        - receives the plaintext letters.
+	 * @return - the number of letters decrypted.
+	 * @throws IOException - if a channel cannot be read or written, or the input
+	 *                     is not valid.
+	 */
+	public long decrypt(ReadableByteChannel ciphertext, WritableByteChannel out) throws IOException {
+		OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(out), 1024 * 1024);
+		long length = BlockFormat.decrypt(Channels.newInputStream(ciphertext), stream, plan);
+		stream.flush();
+		return length;
+	}
+
+	/**
+	 * Encrypts every text file in a directory into another directory, as
+	 * encrypted0.txt, encrypted1.txt... numbered in name order.
+	 *
+	 * @param inputDirectory  - directory with the text files.
+	 * @param outputDirectory - directory to write to; it must exist.
+	 * @return - the number of files encrypted.
+	 * @throws IOException - if a file cannot be read or written.
+	 */
+	public int encryptDirectory(String inputDirectory, String outputDirectory) throws IOException {
+		Encryption encryption = new Encryption(new File(inputDirectory), new File(outputDirectory), plan);
+		encryption.setBlockSize(blockSize);
+		encryption.setChecksums(checksums);
+		encryption.setThreads(threads);
+		return encryption.encryptDirectory(false);
+	}
+
+	/**
+	 * Decrypts every text file in a directory into another directory, as
+	 * decrypted0.txt, decrypted1.txt... numbered in name order.
+	 *
+	 * @param inputDirectory  - directory with the encrypted files.
+	 * @param outputDirectory - directory to write to; it must exist.
+	 * @return - the number of files decrypted.
+	 * @throws IOException - if a file cannot be read or written.
+	 */
+	public int decryptDirectory(String inputDirectory, String outputDirectory) throws IOException {
+		Decryption decryption = new Decryption(new File(inputDirectory), new File(outputDirectory), plan);
+		decryption.setThreads(threads);
+		return decryption.decryptDirectory(false);
+	}
+
+	/**
+	 * Sets the block size used for directories and channels. With 0, directories
+	 * are written in the original format and channels use the default block size.
+	 *
+	 * @param blockSize - plaintext characters per block, or 0.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Turns CRC32C checksums on or off for directories and channels.
+	 *
+	 * @param checksums - true to write checksums.
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Sets how many files of a directory are processed at the same time.
+	 *
+	 * @param threads - the number of worker threads.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/*
+	 * The letters of a text in uppercase, the same as Parser keeps.
+	 */
+	private static byte[] lettersOf(CharSequence text) {
+		byte[] letters = new byte[text.length()];
+		int count = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char character = text.charAt(i);
+			if (character >= 'a' && character <= 'z') {
+				letters[count++] = (byte) (character - ('a' - 'A'));
+			} else if (character >= 'A' && character <= 'Z') {
+				letters[count++] = (byte) character;
+			}
+		}
+		return count == letters.length ? letters : Arrays.copyOf(letters, count);
+	}
+
+	/*
+	 * The letters of the remaining bytes of a buffer in uppercase.
+	 */
+	private static byte[] lettersOf(ByteBuffer text) {
+		byte[] letters = new byte[text.remaining()];
+		int count = 0;
+		while (text.hasRemaining()) {
+			byte character = text.get();
+			if (character >= 'a' && character <= 'z') {
+				letters[count++] = (byte) (character - ('a' - 'A'));
+			} else if (character >= 'A' && character <= 'Z') {
+				letters[count++] = character;
+			}
+		}
+		return count == letters.length ? letters : Arrays.copyOf(letters, count);
+	}
+
+}
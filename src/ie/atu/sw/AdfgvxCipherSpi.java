@@ -0,0 +1,414 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+
+/**
+ * The cipher behind {@link AdfgvxProvider}, so the ADFGVX transform can be used
+ * through {@link Cipher}, e.g. in a CipherInputStream or CipherOutputStream.
+ * It reads and writes the block format, see {@link BlockFormat}: encrypting
+ * writes the header, then each block as soon as it is full, then the trailer
+ * in doFinal, and decrypting gives back each block as soon as all of its
+ * letters have arrived and checks the trailer in doFinal. So only one block is
+ * ever held, however the input is split into update calls, and the output is
+ * the same as "encrypt --block-size" writes.
+ *
+ * The key is the key text as ASCII bytes, e.g.
+ * new SecretKeySpec("ZEBRA12".getBytes(), "ADFGVX"). The compiled key is kept
+ * and used again while init is called with the same key. The block size and
+ * checksums can be set with {@link BlockParameters}. Only the letters of the
+ * plaintext are kept, in uppercase. Corrupt ciphertext stops the output and is
+ * reported by doFinal with a BadPaddingException, and ciphertext without its
+ * trailer with an IllegalBlockSizeException.
+ */
+public class AdfgvxCipherSpi extends CipherSpi {
+	private static final boolean[] ADFGVX_LETTER = new boolean[128];
+
+	private int mode;
+	private char[] compiledKey; 	// Key the plan was compiled for.
+	private KeyPlan plan;
+	private int blockSize = BlockFormat.DEFAULT_BLOCK_SIZE;
+	private boolean checksums;
+
+	// The current message.
+	private byte[] pending = new byte[0]; 		// Letters of the block not yet full.
+	private int pendingCount;
+	private long length; 						// Plaintext characters so far.
+	private CRC32C ciphertextCrc = new CRC32C();
+	private CRC32C plaintextCrc = new CRC32C();
+	private boolean headerDone;
+	private StringBuilder line = new StringBuilder(); 	// The header, then the trailer, while decrypting.
+	private boolean inTrailer;
+	private String corruption; 					// Why the ciphertext is not valid, or null.
+
+	static {
+		for (char letter : "ADFGVX".toCharArray()) {
+			ADFGVX_LETTER[letter] = true;
+		}
+	}
+
+	/**
+	 * The settings of the block format.
+	 *
+	 * @param blockSize - plaintext characters per block.
+	 * @param checksums - true to write CRC32C checksums in the trailer when
+	 *                  encrypting. Checksums in a trailer are always checked when
+	 *                  decrypting.
+	 */
+	public record BlockParameters(int blockSize, boolean checksums) implements AlgorithmParameterSpec {
+	}
+
+	@Override
+	protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+		if (!mode.equalsIgnoreCase("NONE")) {
+			throw new NoSuchAlgorithmException("ADFGVX has no mode " + mode + ", only NONE");
+		}
+	}
+
+	@Override
+	protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+		if (!padding.equalsIgnoreCase("NoPadding")) {
+			throw new NoSuchPaddingException("ADFGVX has no padding " + padding + ", only NoPadding");
+		}
+	}
+
+	/*
+	 * 0, as the cipher takes any number of bytes at a time.
+	 */
+	@Override
+	protected int engineGetBlockSize() {
+		return 0;
+	}
+
+	/*
+	 * At most: the header, two letters for every byte given and still held, and
+	 * the trailer when encrypting; one byte for every two letters when decrypting.
+	 */
+	@Override
+	protected int engineGetOutputSize(int inputLen) {
+		if (mode == Cipher.DECRYPT_MODE) {
+			return (pendingCount + inputLen) / 2;
+		}
+		long size = (headerDone ? 0 : BlockFormat.TAIL_BYTES) + 2L * (pendingCount + inputLen)
+				+ BlockFormat.TAIL_BYTES;
+		return (int) Math.min(size, Integer.MAX_VALUE - 8);
+	}
+
+	@Override
+	protected byte[] engineGetIV() {
+		return null;
+	}
+
+	@Override
+	protected AlgorithmParameters engineGetParameters() {
+		return null;
+	}
+
+	@Override
+	protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+		try {
+			engineInit(opmode, key, (AlgorithmParameterSpec) null, random);
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new InvalidKeyException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		if (opmode != Cipher.ENCRYPT_MODE && opmode != Cipher.DECRYPT_MODE) {
+			throw new InvalidParameterException("ADFGVX can only encrypt and decrypt");
+		}
+		int newBlockSize = BlockFormat.DEFAULT_BLOCK_SIZE;
+		boolean newChecksums = false;
+		if (params instanceof BlockParameters blockParameters) {
+			newBlockSize = blockParameters.blockSize();
+			newChecksums = blockParameters.checksums();
+			if (newBlockSize < 1 || newBlockSize > BlockFormat.MAX_BLOCK_SIZE) {
+				throw new InvalidAlgorithmParameterException(
+						"The block size must be between 1 and " + BlockFormat.MAX_BLOCK_SIZE);
+			}
+		} else if (params != null) {
+			throw new InvalidAlgorithmParameterException("ADFGVX takes BlockParameters, not " + params);
+		}
+
+		// The plan is compiled again only when the key changes.
+		char[] keyText = keyText(key);
+		boolean sameKey = Arrays.equals(keyText, compiledKey);
+		Metrics.get().keyCacheLookup(sameKey);
+		if (!sameKey) {
+			plan = new KeyPlan(keyText);
+			compiledKey = keyText;
+		}
+		mode = opmode;
+		blockSize = newBlockSize;
+		checksums = newChecksums;
+		reset();
+	}
+
+	@Override
+	protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		if (params != null) {
+			throw new InvalidAlgorithmParameterException("ADFGVX takes BlockParameters, not AlgorithmParameters");
+		}
+		engineInit(opmode, key, (AlgorithmParameterSpec) null, random);
+	}
+
+	@Override
+	protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+		byte[] output = new byte[engineGetOutputSize(inputLen)];
+		int count = process(input, inputOffset, inputLen, output, 0);
+		return count == output.length ? output : Arrays.copyOf(output, count);
+	}
+
+	@Override
+	protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+			throws ShortBufferException {
+		checkRoom(output, outputOffset, inputLen);
+		return process(input, inputOffset, inputLen, output, outputOffset);
+	}
+
+	@Override
+	protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+			throws IllegalBlockSizeException, BadPaddingException {
+		byte[] output = new byte[engineGetOutputSize(inputLen)];
+		int count = doFinal(input, inputOffset, inputLen, output, 0);
+		return count == output.length ? output : Arrays.copyOf(output, count);
+	}
+
+	@Override
+	protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+			throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+		checkRoom(output, outputOffset, inputLen);
+		return doFinal(input, inputOffset, inputLen, output, outputOffset);
+	}
+
+	/*
+	 * Takes more of the message and writes what can be finished.
+	 */
+	private int process(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+		if (plan == null) {
+			throw new IllegalStateException("The cipher has not been initialised");
+		}
+		if (input == null) {
+			return 0;
+		}
+		return mode == Cipher.ENCRYPT_MODE ? encrypt(input, inputOffset, inputLen, output, outputOffset)
+				: decrypt(input, inputOffset, inputLen, output, outputOffset);
+	}
+
+	/*
+	 * Ends the message: writes the last block and the trailer, or decrypts the
+	 * last block and checks the trailer. The cipher is then ready for the next
+	 * message with the same key.
+	 */
+	private int doFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+			throws IllegalBlockSizeException, BadPaddingException {
+		try {
+			int position = outputOffset + process(input, inputOffset, inputLen, output, outputOffset);
+			if (mode == Cipher.ENCRYPT_MODE) {
+				position = writeHeader(output, position);
+				position = encryptPending(output, position);
+				byte[] trailer = checksums ? BlockFormat.trailer(length, ciphertextCrc, plaintextCrc)
+						: BlockFormat.trailer(length, null, null);
+				System.arraycopy(trailer, 0, output, position, trailer.length);
+				return position + trailer.length - outputOffset;
+			}
+
+			if (corruption != null) {
+				throw new BadPaddingException(corruption);
+			}
+			if (!inTrailer) {
+				throw new IllegalBlockSizeException("The ciphertext is truncated: its trailer is missing");
+			}
+			if (pendingCount % 2 != 0) {
+				throw new BadPaddingException("The ciphertext is corrupt: it has an odd number of letters");
+			}
+			position = decryptPending(output, position);
+			try {
+				Map<String, Long> trailer = BlockFormat.parseTrailer(line.toString());
+				BlockFormat.checkLength(trailer, length);
+				BlockFormat.checkCrc(trailer, "crc", ciphertextCrc);
+				BlockFormat.checkCrc(trailer, "plaincrc", plaintextCrc);
+			} catch (IOException e) {
+				throw new BadPaddingException(e.getMessage());
+			}
+			return position - outputOffset;
+		} finally {
+			reset();
+		}
+	}
+
+	/*
+	 * Keeps the letters of the plaintext and encrypts each block once it is full.
+	 */
+	private int encrypt(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+		int position = writeHeader(output, outputOffset);
+		for (int i = inputOffset; i < inputOffset + inputLen; i++) {
+			byte character = input[i];
+			if (character >= 'a' && character <= 'z') {
+				character -= 'a' - 'A';
+			} else if (character < 'A' || character > 'Z') {
+				continue;
+			}
+			pending[pendingCount++] = character;
+			if (pendingCount == blockSize) {
+				position = encryptPending(output, position);
+			}
+		}
+		return position - outputOffset;
+	}
+
+	/*
+	 * Reads the header, then keeps the letters of each block and decrypts it once
+	 * it is full, then keeps the trailer. Anything unexpected marks the
+	 * ciphertext as corrupt, and the rest of it is ignored.
+	 */
+	private int decrypt(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+		int position = outputOffset;
+		for (int i = inputOffset; i < inputOffset + inputLen && corruption == null; i++) {
+			byte letter = input[i];
+			if (!headerDone || inTrailer) {
+				if (!headerDone && letter == '\n') {
+					startBlocks();
+				} else if (line.length() >= BlockFormat.TAIL_BYTES) {
+					corruption = "The ciphertext is corrupt: its header or trailer is too long";
+				} else {
+					line.append((char) (letter & 0xFF));
+				}
+			} else if (letter == '\n') {
+				inTrailer = true;
+			} else if (letter < 0 || !ADFGVX_LETTER[letter]) {
+				corruption = "The ciphertext is corrupt: it holds a character that is not ADFGVX";
+			} else {
+				pending[pendingCount++] = letter;
+				if (pendingCount == pending.length) {
+					position = decryptPending(output, position);
+				}
+			}
+		}
+		return position - outputOffset;
+	}
+
+	/*
+	 * Reads the block size from the header line that has just ended.
+	 */
+	private void startBlocks() {
+		headerDone = true;
+		try {
+			blockSize = BlockFormat.parseHeader(line.toString());
+			pending = pendingFor(2 * blockSize);
+		} catch (IOException e) {
+			corruption = e.getMessage();
+		}
+		line.setLength(0);
+	}
+
+	/*
+	 * Writes the header before the first ciphertext, if it has not been written.
+	 */
+	private int writeHeader(byte[] output, int position) {
+		if (headerDone) {
+			return position;
+		}
+		byte[] header = BlockFormat.header(blockSize);
+		System.arraycopy(header, 0, output, position, header.length);
+		headerDone = true;
+		return position + header.length;
+	}
+
+	/*
+	 * Encrypts the letters held, a full block or the last part block.
+	 */
+	private int encryptPending(byte[] output, int position) {
+		plan.encryptBlock(pending, 0, pendingCount, output, position);
+		if (checksums) {
+			plaintextCrc.update(pending, 0, pendingCount);
+			ciphertextCrc.update(output, position, 2 * pendingCount);
+		}
+		length += pendingCount;
+		position += 2 * pendingCount;
+		pendingCount = 0;
+		return position;
+	}
+
+	/*
+	 * Decrypts the letters held, a full block or the last part block.
+	 */
+	private int decryptPending(byte[] output, int position) {
+		plan.decryptBlock(pending, 0, pendingCount, output, position);
+		ciphertextCrc.update(pending, 0, pendingCount);
+		plaintextCrc.update(output, position, pendingCount / 2);
+		length += pendingCount / 2;
+		position += pendingCount / 2;
+		pendingCount = 0;
+		return position;
+	}
+
+	/*
+	 * Gets ready for a new message.
+	 */
+	private void reset() {
+		// The block size of a ciphertext is only known once its header is read.
+		pending = pendingFor(mode == Cipher.ENCRYPT_MODE ? blockSize : 0);
+		pendingCount = 0;
+		length = 0;
+		ciphertextCrc.reset();
+		plaintextCrc.reset();
+		headerDone = false;
+		line.setLength(0);
+		inTrailer = false;
+		corruption = null;
+	}
+
+	/*
+	 * A buffer for the letters of one block, the one already held if it is the
+	 * right size.
+	 */
+	private byte[] pendingFor(int size) {
+		return pending.length == size ? pending : new byte[size];
+	}
+
+	private void checkRoom(byte[] output, int outputOffset, int inputLen) throws ShortBufferException {
+		if (output.length - outputOffset < engineGetOutputSize(inputLen)) {
+			throw new ShortBufferException("The output needs room for " + engineGetOutputSize(inputLen) + " bytes");
+		}
+	}
+
+	/*
+	 * The key text from a key's bytes, checked against the same rules as the
+	 * menu.
+	 */
+	private static char[] keyText(Key key) throws InvalidKeyException {
+		byte[] encoded = key == null ? null : key.getEncoded();
+		if (encoded == null) {
+			throw new InvalidKeyException("An ADFGVX key must have its key text as its encoded bytes");
+		}
+		String text = new String(encoded, StandardCharsets.US_ASCII).trim().toUpperCase();
+		String problem = ie.atu.sw.Key.problemWith(text);
+		if (problem != null) {
+			throw new InvalidKeyException(problem);
+		}
+		return text.toCharArray();
+	}
+
+}
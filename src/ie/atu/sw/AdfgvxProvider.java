@@ -0,0 +1,38 @@
+package ie.atu.sw;
+
+import java.security.Provider;
+
+/**
+ * A Java Cryptography Architecture provider for the ADFGVX cipher, so it can
+ * be used wherever a {@link javax.crypto.Cipher} is, e.g. to plug it into data
+ * paths built on CipherInputStream and CipherOutputStream:
+ *
+ * <pre>
+ * Cipher cipher = Cipher.getInstance("ADFGVX", new AdfgvxProvider());
+ * cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec("ZEBRA12".getBytes(), "ADFGVX"));
+ * </pre>
+ *
+ * It can also be added with Security.addProvider and then found by name. The
+ * cipher is {@link AdfgvxCipherSpi}. OpenJDK takes unsigned providers; the
+ * Oracle JDK only takes a provider from a signed JAR.
+ */
+public class AdfgvxProvider extends Provider {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The name the provider is registered under.
+	 */
+	public static final String NAME = "ADFGVX";
+
+	/**
+	 * Constructor - the provider with its one cipher, "ADFGVX", also known as
+	 * "ADFGVX/NONE/NoPadding".
+	 */
+	public AdfgvxProvider() {
+		super(NAME, "1.0", "ADFGVX cipher in the block format");
+		put("Cipher.ADFGVX", AdfgvxCipherSpi.class.getName());
+		put("Cipher.ADFGVX SupportedModes", "NONE");
+		put("Cipher.ADFGVX SupportedPaddings", "NOPADDING");
+	}
+
+}
@@ -0,0 +1,512 @@
+package ie.atu.sw;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs a task over every text file in an input directory, on one or more
+ * worker threads. Files are numbered in name order, so each input file always
+ * gets the same output number, and every completed file is recorded in a
+ * checkpoint journal so an interrupted job can be resumed where it stopped.
+ * The order files are started in is chosen separately from their numbers: by
+ * default the largest files go first, so one big file started last cannot hold
+ * up the end of the whole batch. The number of worker threads can be changed
+ * through the {@link Metrics} MBean while the job runs.
+ */
+public class BatchJob {
+	private static final long SUPERVISE_MILLIS = 100; // How often the thread count is checked.
+
+	private File inputDirectory;
+	private File outputDirectory;
+	private String outputPrefix;
+	private int threads = 1;
+	private Schedule schedule = Schedule.LARGEST_FIRST;
+	private long makespanMillis;
+	private AtomicLong bytesProcessed = new AtomicLong();
+	private int syncGroup; 			// Files forced to disk together, or 0 to not force them.
+	private boolean deduplicate; 	// Process each distinct content only once.
+	private boolean sharded; 		// Write the outputs in a ShardedLayout.
+	private long leaseMillis; 		// Share the job with other processes, or 0 to not.
+	private String jobFingerprint = "";	// What the outputs of a shared job depend on, e.g. the key.
+	private Keyring keyring; 		// Gives each file its key, or null for one key.
+	private List<String> reports = new ArrayList<>();
+
+	/**
+	 * The order files are handed to the worker threads.
+	 */
+	public enum Schedule {
+		NAME, 			// In name order, the same as the output numbers.
+		LARGEST_FIRST, 	// Biggest files first, for the shortest total time.
+		SMALLEST_FIRST 	// Smallest files first, so most results are ready soonest.
+	}
+
+	/**
+	 * The work done for a single file, e.g. encrypting it.
+	 */
+	public interface FileTask {
+		void process(File inputFile, File outputFile) throws Exception;
+	}
+
+	/**
+	 * Constructor - a new job reading from the input directory and writing files
+	 * named prefix + number + ".txt" into the output directory.
+	 *
+	 * @param inputDirectory  - directory with the text files to process.
+	 * @param outputDirectory - directory the results are written to.
+	 * @param outputPrefix    - prefix of the output files, e.g. "encrypted".
+	 */
+	public BatchJob(String inputDirectory, String outputDirectory, String outputPrefix) {
+		this.inputDirectory = new File(inputDirectory);
+		this.outputDirectory = new File(outputDirectory);
+		this.outputPrefix = outputPrefix;
+	}
+
+	/**
+	 * Sets how many files are processed at the same time.
+	 *
+	 * @param threads - the number of worker threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("The number of threads must be at least 1");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the order files are started in.
+	 *
+	 * @param schedule - the order to use.
+	 */
+	public void setSchedule(Schedule schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Makes the output durable: each file is written under a temporary name, and
+	 * the files are forced to disk and renamed a group at a time, see
+	 * {@link GroupCommit}.
+	 *
+	 * @param syncGroup - how many files are forced to disk together, or 0 to
+	 *                  write the files straight to their names without forcing
+	 *                  them.
+	 */
+	public void setSyncGroup(int syncGroup) {
+		if (syncGroup < 0) {
+			throw new IllegalArgumentException("The sync group cannot be negative");
+		}
+		this.syncGroup = syncGroup;
+	}
+
+	/**
+	 * Turns deduplication on or off: files with the same content are processed
+	 * once and the others get a link to that output, see {@link Deduplicator}.
+	 *
+	 * @param deduplicate - true to deduplicate.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Writes the outputs two directories deep with an index, see
+	 * {@link ShardedLayout}, instead of all in the output directory.
+	 *
+	 * @param sharded - true for the sharded layout.
+	 */
+	public void setSharded(boolean sharded) {
+		this.sharded = sharded;
+	}
+
+	/**
+	 * Shares the job with other processes working on the same output directory,
+	 * on this machine or others, see {@link WorkLeases}. Each process claims files
+	 * before working on them, and keeps going until every file is finished by
+	 * some process.
+	 *
+	 * @param leaseMillis - how long a claim lasts if the process holding it stops
+	 *                    renewing it, or 0 to not share the job.
+	 */
+	public void setLeaseMillis(long leaseMillis) {
+		if (leaseMillis < 0) {
+			throw new IllegalArgumentException("The lease time cannot be negative");
+		}
+		this.leaseMillis = leaseMillis;
+	}
+
+	/**
+	 * Sets what the outputs of a shared job depend on besides the input files,
+	 * so files finished by an earlier job with other settings are done again.
+	 *
+	 * @param jobFingerprint - a fingerprint of the settings, see
+	 *                       {@link WorkLeases#fingerprint}.
+	 */
+	public void setJobFingerprint(String jobFingerprint) {
+		this.jobFingerprint = jobFingerprint;
+	}
+
+	/**
+	 * Processes files that have different keys, see {@link Keyring}. The input
+	 * directory is read with its subdirectories, every file must match a pattern
+	 * of the keyring before any is started, and each output is written in the
+	 * same subdirectory as its input. The files are known by their paths from the
+	 * input directory, so names can repeat in different subdirectories.
+	 *
+	 * @param keyring - the keyring, or null to use one key for every file.
+	 */
+	public void setKeyring(Keyring keyring) {
+		this.keyring = keyring;
+	}
+
+	/**
+	 * @return - summary lines from the last run, e.g. how long forcing the files
+	 *         to disk took; empty if there is nothing to report.
+	 */
+	public List<String> getReports() {
+		return reports;
+	}
+
+	/**
+	 * @return - how long the last run took from start to finish, in milliseconds.
+	 */
+	public long getMakespanMillis() {
+		return makespanMillis;
+	}
+
+	/**
+	 * @return - the bytes of input in the files processed by the last run.
+	 */
+	public long getBytesProcessed() {
+		return bytesProcessed.get();
+	}
+
+	/**
+	 * Runs the task on each text file in the input directory, several files at a
+	 * time. If resuming, files recorded in the journal by an earlier run are
+	 * skipped. If a file fails, no new files are started and the error is thrown
+	 * once the files already running have finished.
+	 *
+	 * @param task   - the work to do for each file.
+	 * @param resume - true to continue an interrupted job.
+	 * @return - the number of files processed by this run.
+	 * @throws IOException - if a file cannot be processed or the journal cannot be
+	 *                     written.
+	 */
+	public int run(FileTask task, boolean resume) throws IOException {
+		long start = System.nanoTime();
+		File[] inputFiles = keyring == null ? ShardedLayout.listInputFiles(inputDirectory)
+				: keyedInputFiles();
+		int[] dispatchOrder = dispatchOrder(inputFiles);
+		Map<String, File> filesByName = new HashMap<>();
+		for (File inputFile : inputFiles) {
+			filesByName.put(nameOf(inputFile), inputFile);
+		}
+		AtomicInteger nextFile = new AtomicInteger();
+		AtomicInteger processed = new AtomicInteger();
+		AtomicReference<IOException> failure = new AtomicReference<>();
+		FileLatencies latencies = new FileLatencies();
+
+		reports = new ArrayList<>();
+		bytesProcessed.set(0);
+		if (!sharded) {
+			ShardedLayout.removeIndex(outputDirectory);
+		}
+		if (keyring != null) {
+			reports.add("Keyring: " + inputFiles.length + " file(s) with " + keyring.keyCount()
+					+ " key(s), each compiled once");
+		}
+
+		// A process sharing the job with others keeps a journal of its own; the leases
+		// say which files are finished.
+		try (WorkLeases leases = leaseMillis > 0
+				? new WorkLeases(outputDirectory, outputPrefix, leaseMillis, jobFingerprint)
+				: null;
+				Checkpoint checkpoint = new Checkpoint(inputDirectory, outputDirectory,
+						leases == null ? outputPrefix : outputPrefix + "." + leases.getWorkerId(),
+						resume && leases == null)) {
+			GroupCommit.Committer committer = (inputName, outputFile) -> {
+				checkpoint.markCompleted(inputName, outputFile.getName());
+				if (leases != null) {
+					leases.complete(inputName, filesByName.get(inputName));
+				}
+			};
+			// A file whose lease was taken over is left to the process that took it.
+			AtomicInteger lostLeases = new AtomicInteger();
+			GroupCommit.OwnerCheck ownerCheck = inputName -> {
+				boolean owned = leases == null || leases.holds(inputName);
+				if (!owned) {
+					lostLeases.incrementAndGet();
+				}
+				return owned;
+			};
+			GroupCommit groupCommit = syncGroup > 0 ? new GroupCommit(committer, syncGroup) : null;
+			if (groupCommit != null) {
+				groupCommit.setOwnerCheck(ownerCheck);
+			}
+			Deduplicator deduplicator = deduplicate ? new Deduplicator(inputFiles) : null;
+
+			// Each worker keeps taking the next file until there are none left, or until
+			// the thread count drops below its number.
+			IntConsumer worker = workerNumber -> {
+				int next;
+				while (failure.get() == null && workerNumber < Metrics.get().threadsOr(threads)
+						&& (next = nextFile.getAndIncrement()) < inputFiles.length) {
+					Metrics.get().queued(-1);
+					int fileNumber = dispatchOrder[next];
+					File inputFile = inputFiles[fileNumber];
+					String inputName = nameOf(inputFile);
+					try {
+						if (checkpoint.isCompleted(inputName)
+								|| leases != null && (leases.isDone(inputName, inputFile)
+										|| !leases.claim(inputName, inputFile))) {
+							continue;
+						}
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+						continue;
+					}
+
+					// A shared job writes under a temporary name too, so an output is only put in
+					// place while its lease is still held.
+					File outputFile = outputFileFor(fileNumber, inputFile);
+					File written = groupCommit == null && leases == null ? outputFile
+							: GroupCommit.temporaryFileFor(outputFile);
+					long fileStart = System.nanoTime();
+					long allocatedAtStart = Metrics.allocatedBytes();
+					FileLatencies.startFile();
+					Metrics.get().workerActive(1);
+					try {
+						// An old output is removed rather than overwritten, as it may be a
+						// link shared with another output.
+						outputFile.getParentFile().mkdirs();
+						Files.deleteIfExists(written.toPath());
+						Files.deleteIfExists(Integrity.sidecarFor(written).toPath());
+						if (deduplicator == null) {
+							task.process(inputFile, written);
+						} else {
+							deduplicator.process(task, inputFile, written, outputFile);
+						}
+
+						if (groupCommit != null) {
+							groupCommit.add(written, outputFile, inputName);
+						} else if (written == outputFile) {
+							committer.committed(inputName, outputFile);
+						} else if (ownerCheck.owns(inputName)) {
+							GroupCommit.moveIntoPlace(written, outputFile);
+							committer.committed(inputName, outputFile);
+						} else {
+							GroupCommit.discard(written);
+							continue;
+						}
+						processed.incrementAndGet();
+						bytesProcessed.addAndGet(inputFile.length());
+						latencies.record(inputName, System.nanoTime() - fileStart);
+						Metrics.get().fileProcessed(outputPrefix, inputFile.length(), written.length(),
+								System.nanoTime() - fileStart, Metrics.allocatedBytes() - allocatedAtStart);
+					} catch (Exception e) {
+						failure.compareAndSet(null, e instanceof IOException ioException ? ioException
+								: new IOException(inputName + ": " + e.getMessage(), e));
+						releaseQuietly(leases, inputName);
+						Metrics.get().fileFailed(outputPrefix);
+					} finally {
+						Metrics.get().workerActive(-1);
+					}
+				}
+			};
+
+			// Sharing processes go over the files again until all are finished, so the
+			// files of a process that died are taken over once their leases go stale.
+			boolean finished;
+			do {
+				nextFile.set(0);
+				Metrics.get().queued(inputFiles.length);
+				try {
+					runWorkers(worker, () -> failure.get() == null && nextFile.get() < inputFiles.length,
+							inputFiles.length);
+				} finally {
+					// Files left untaken after a failure leave the queue too.
+					Metrics.get().queued(-(inputFiles.length - Math.min(nextFile.get(), inputFiles.length)));
+				}
+
+				// Files that finished before a failure are still committed.
+				if (groupCommit != null) {
+					try {
+						groupCommit.flush();
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+				finished = failure.get() != null || leases == null || leases.allDone(inputFiles);
+				if (!finished) {
+					pause(leases.pollMillis());
+				}
+			} while (!finished);
+
+			if (latencies.getCount() > 0) {
+				reports.addAll(latencies.report());
+			}
+			if (groupCommit != null) {
+				reports.add(groupCommit.report());
+			}
+			if (deduplicator != null) {
+				reports.add(deduplicator.report());
+			}
+			if (lostLeases.get() > 0) {
+				reports.add("Lost " + lostLeases + " lease(s) to other workers; their files were left to them.");
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+			if (sharded) {
+				File[] outputFiles = new File[inputFiles.length];
+				Arrays.setAll(outputFiles, i -> outputFileFor(i, inputFiles[i]));
+				ShardedLayout.writeIndex(outputDirectory, inputFiles, outputFiles);
+			}
+			checkpoint.complete();
+		} finally {
+			makespanMillis = (System.nanoTime() - start) / 1_000_000;
+		}
+		return processed.get();
+	}
+
+	/*
+	 * Runs the worker on the worker threads and waits for them all to finish.
+	 * While they run, the thread count is checked again regularly: workers are
+	 * started when it goes up, and workers numbered above it stop after their
+	 * current file when it goes down.
+	 */
+	private void runWorkers(IntConsumer worker, BooleanSupplier workLeft, int fileCount) throws IOException {
+		List<Thread> workers = new ArrayList<>();
+		boolean running;
+		do {
+			int wanted = Math.min(Metrics.get().threadsOr(threads), Math.max(1, fileCount));
+			for (int i = 0; i < wanted && workLeft.getAsBoolean(); i++) {
+				if (i == workers.size() || !workers.get(i).isAlive()) {
+					int workerNumber = i;
+					Thread thread = new Thread(() -> worker.accept(workerNumber), outputPrefix + "-worker-" + i);
+					if (i == workers.size()) {
+						workers.add(thread);
+					} else {
+						workers.set(i, thread);
+					}
+					thread.start();
+				}
+			}
+
+			running = false;
+			for (Thread thread : workers) {
+				if (thread.isAlive()) {
+					try {
+						thread.join(SUPERVISE_MILLIS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for the files to finish");
+					}
+					running = true;
+					break;
+				}
+			}
+		} while (running || workLeft.getAsBoolean());
+	}
+
+	/*
+	 * Waits before looking at the leases again.
+	 */
+	private static void pause(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for other processes to finish");
+		}
+	}
+
+	/*
+	 * Gives up the lease of a file that failed, so another process can try it.
+	 */
+	private static void releaseQuietly(WorkLeases leases, String inputName) {
+		if (leases == null) {
+			return;
+		}
+		try {
+			leases.release(inputName);
+		} catch (IOException e) {
+			// The lease goes stale and is taken over instead.
+		}
+	}
+
+	/*
+	 * The output file for a file number, in the output directory itself, in its
+	 * shard, or with a keyring in the same subdirectory as the input file.
+	 */
+	private File outputFileFor(int fileNumber, File inputFile) {
+		String name = outputPrefix + fileNumber + ".txt";
+		if (keyring != null) {
+			String subdirectory = new File(nameOf(inputFile)).getParent();
+			return new File(subdirectory == null ? outputDirectory : new File(outputDirectory, subdirectory), name);
+		}
+		return sharded ? new File(new File(outputDirectory, ShardedLayout.shardOf(fileNumber)), name)
+				: new File(outputDirectory, name);
+	}
+
+	/*
+	 * The name a file is known by in the journal, the leases and the reports: its
+	 * name, or with a keyring its path from the input directory.
+	 */
+	private String nameOf(File inputFile) {
+		return keyring == null ? inputFile.getName() : Keyring.relativePath(inputDirectory, inputFile);
+	}
+
+	/*
+	 * Lists the input files for a keyring and checks that each has a key before
+	 * any is started. Files of different owners must not be deduplicated
+	 * together, and shards and shared workers keep names that cannot hold a
+	 * subdirectory, so they cannot be used with a keyring.
+	 */
+	private File[] keyedInputFiles() throws IOException {
+		if (deduplicate || sharded || leaseMillis > 0) {
+			throw new IllegalArgumentException("--dedup, --shards and --worker cannot be used with a keyring");
+		}
+		File[] inputFiles = Keyring.listInputFiles(inputDirectory);
+		for (File inputFile : inputFiles) {
+			if (keyring.planFor(nameOf(inputFile)) == null) {
+				throw new IllegalArgumentException("No pattern in the keyring matches " + nameOf(inputFile));
+			}
+		}
+		return inputFiles;
+	}
+
+	/*
+	 * The file numbers in the order they should be started. The sizes are read
+	 * once up front so the order does not change while the files are sorted.
+	 */
+	private int[] dispatchOrder(File[] inputFiles) {
+		long[] sizes = new long[inputFiles.length];
+		for (int i = 0; i < inputFiles.length; i++) {
+			sizes[i] = inputFiles[i].length();
+		}
+
+		Comparator<Integer> order = switch (schedule) {
+		case NAME -> Comparator.naturalOrder();
+		case LARGEST_FIRST -> Comparator.comparingLong((Integer i) -> sizes[i]).reversed();
+		case SMALLEST_FIRST -> Comparator.comparingLong((Integer i) -> sizes[i]);
+		};
+		Integer[] fileNumbers = new Integer[inputFiles.length];
+		Arrays.setAll(fileNumbers, i -> i);
+		Arrays.sort(fileNumbers, order); // Stable, so equal sizes stay in name order.
+		return Arrays.stream(fileNumbers).mapToInt(Integer::intValue).toArray();
+	}
+
+}
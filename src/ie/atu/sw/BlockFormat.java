@@ -0,0 +1,439 @@
+package ie.atu.sw;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.stream.IntStream;
+
+/**
+ * The block format for encrypted files. The original format transposes a whole
+ * file as one matrix and drops the characters that do not fill the last row.
+ * The block format instead splits the plaintext into fixed-size blocks and
+ * transposes each block on its own, so blocks can be encrypted and decrypted in
+ * parallel, a piece of the file can be decrypted without the rest, and nothing
+ * is dropped. A file looks like:
+ *
+ * <pre>
+ * #ADFGVX 2 block=65536
+ * ...ciphertext of each block, one after the other...
+ * #length=123456
+ * </pre>
+ *
+ * The header gives the format version and the block size, and the trailer gives
+ * the plaintext length. Ciphertext never contains '#' or a line break, so the
+ * header and trailer cannot be mistaken for it, and a file without a trailer is
+ * known to be truncated. The trailer can also carry CRC32C checksums of the
+ * ciphertext ("crc") and of the plaintext ("plaincrc"), which are worked out as
+ * the file is written and checked as it is decrypted or verified.
+ */
+public class BlockFormat {
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+	private static final String MAGIC = "#ADFGVX";
+	private static final int VERSION = 2;
+	static final int TAIL_BYTES = 256; 				// Enough to hold the trailer.
+	private static final int VERIFY_BUFFER_BYTES = 1024 * 1024;
+
+	/**
+	 * Checks if a file is in the block format by looking at its first character.
+	 *
+	 * @param file - the file to check.
+	 * @return - true if the file starts with the block format header.
+	 * @throws IOException - if the file cannot be read.
+	 */
+	public static boolean isBlocked(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			return in.read() == '#';
+		}
+	}
+
+	/**
+	 * Encrypts a text stream into the block format. The text is read a batch of
+	 * blocks at a time, and the blocks in each batch are encrypted in parallel.
+	 *
+	 * @param plaintext - the text to encrypt; only its letters are kept.
+	 * @param out       - receives the encrypted file.
+	 * @param plan      - the compiled key.
+	 * @param blockSize - plaintext characters per block.
+	 * @param checksums - true to add checksums to the trailer.
+	 * @return - the number of plaintext characters encrypted.
+	 * @throws IOException - if the streams cannot be read or written.
+	 */
+	public static long encrypt(InputStream plaintext, OutputStream out, KeyPlan plan, int blockSize,
+			boolean checksums) throws IOException {
+		checkBlockSize(blockSize);
+		out.write(header(blockSize));
+
+		LetterReader reader = new LetterReader(plaintext);
+		byte[] letters = new byte[batchBlocks(blockSize) * blockSize];
+		byte[] ciphertext = new byte[2 * letters.length];
+		CRC32C ciphertextCrc = new CRC32C();
+		CRC32C plaintextCrc = new CRC32C();
+		long length = 0;
+		int count;
+
+		long lap = System.nanoTime();
+		do {
+			count = reader.read(letters, 0, letters.length);
+			lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+			int letterCount = count;
+			IntStream.range(0, blocksIn(letterCount, blockSize)).parallel().forEach(block -> {
+				int offset = block * blockSize;
+				plan.encryptBlock(letters, offset, Math.min(blockSize, letterCount - offset), ciphertext, 2 * offset);
+			});
+			if (checksums) {
+				plaintextCrc.update(letters, 0, count);
+				ciphertextCrc.update(ciphertext, 0, 2 * count);
+			}
+			lap = FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+			out.write(ciphertext, 0, 2 * count);
+			lap = FileLatencies.lap(FileLatencies.Stage.WRITE, lap);
+			length += count;
+		} while (count == letters.length);
+
+		out.write(checksums ? trailer(length, ciphertextCrc, plaintextCrc) : trailer(length, null, null));
+		return length;
+	}
+
+	/*
+	 * The header line of a file with the given block size.
+	 */
+	static byte[] header(int blockSize) {
+		return (MAGIC + " " + VERSION + " block=" + blockSize + "\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * The line break and trailer line that end a file, with the checksums if
+	 * they are given.
+	 */
+	static byte[] trailer(long length, CRC32C ciphertextCrc, CRC32C plaintextCrc) {
+		String trailer = "\n#length=" + length;
+		if (ciphertextCrc != null) {
+			trailer += " crc=" + ciphertextCrc.getValue() + " plaincrc=" + plaintextCrc.getValue();
+		}
+		return (trailer + "\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Decrypts a stream in the block format. The blocks are read a batch at a time
+	 * and decrypted in parallel. If the trailer has checksums, they are checked.
+	 *
+	 * @param ciphertext - the encrypted file.
+	 * @param out        - receives the decrypted text.
+	 * @param plan       - the compiled key.
+	 * @return - the number of plaintext characters decrypted.
+	 * @throws IOException - if the streams cannot be read or written, or the file
+	 *                     is not valid.
+	 */
+	public static long decrypt(InputStream ciphertext, OutputStream out, KeyPlan plan) throws IOException {
+		int blockSize = parseHeader(readLine(ciphertext));
+		byte[] letters = new byte[batchBlocks(blockSize) * 2 * blockSize];
+		byte[] plaintext = new byte[letters.length / 2];
+		CRC32C ciphertextCrc = new CRC32C();
+		CRC32C plaintextCrc = new CRC32C();
+		long length = 0;
+		long lap = System.nanoTime();
+
+		while (true) {
+			int count = ciphertext.readNBytes(letters, 0, letters.length);
+			lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+			int end = indexOf(letters, count, (byte) '\n');
+			if (end < 0 && count < letters.length) {
+				throw new IOException("The file is truncated: its trailer is missing");
+			}
+
+			// Stop at the trailer. Every block before the last one is full.
+			int letterCount = end < 0 ? count : end;
+			if (letterCount % 2 != 0) {
+				throw new IOException("The file is corrupt: it has an odd number of letters");
+			}
+			IntStream.range(0, blocksIn(letterCount, 2 * blockSize)).parallel().forEach(block -> {
+				int offset = block * 2 * blockSize;
+				plan.decryptBlock(letters, offset, Math.min(2 * blockSize, letterCount - offset), plaintext, offset / 2);
+			});
+			ciphertextCrc.update(letters, 0, letterCount);
+			plaintextCrc.update(plaintext, 0, letterCount / 2);
+			lap = FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+			out.write(plaintext, 0, letterCount / 2);
+			lap = FileLatencies.lap(FileLatencies.Stage.WRITE, lap);
+			length += letterCount / 2;
+
+			if (end >= 0) {
+				String trailerText = new String(letters, end, count - end, StandardCharsets.US_ASCII)
+						+ new String(ciphertext.readAllBytes(), StandardCharsets.US_ASCII);
+				Map<String, Long> trailer = parseTrailer(trailerText);
+				checkLength(trailer, length);
+				checkCrc(trailer, "crc", ciphertextCrc);
+				checkCrc(trailer, "plaincrc", plaintextCrc);
+				return length;
+			}
+		}
+	}
+
+	/**
+	 * Checks a file in the block format without the key: its header and trailer
+	 * must be valid, its length must match the trailer, and if the trailer has a
+	 * ciphertext checksum, the checksum must match.
+	 *
+	 * @param ciphertext - the encrypted file.
+	 * @return - true if the checksum matched, false if the file has no checksum.
+	 * @throws IOException - if the file cannot be read, or is truncated or corrupt.
+	 */
+	public static boolean verify(InputStream ciphertext) throws IOException {
+		parseHeader(readLine(ciphertext));
+		byte[] letters = new byte[VERIFY_BUFFER_BYTES];
+		CRC32C ciphertextCrc = new CRC32C();
+		long letterCount = 0;
+
+		while (true) {
+			int count = ciphertext.readNBytes(letters, 0, letters.length);
+			int end = indexOf(letters, count, (byte) '\n');
+			if (end < 0 && count < letters.length) {
+				throw new IOException("The file is truncated: its trailer is missing");
+			}
+			int dataLength = end < 0 ? count : end;
+			ciphertextCrc.update(letters, 0, dataLength);
+			letterCount += dataLength;
+
+			if (end >= 0) {
+				String trailerText = new String(letters, end, count - end, StandardCharsets.US_ASCII)
+						+ new String(ciphertext.readAllBytes(), StandardCharsets.US_ASCII);
+				Map<String, Long> trailer = parseTrailer(trailerText);
+				if (letterCount % 2 != 0) {
+					throw new IOException("The file is corrupt: it has an odd number of letters");
+				}
+				checkLength(trailer, letterCount / 2);
+				checkCrc(trailer, "crc", ciphertextCrc);
+				return trailer.containsKey("crc");
+			}
+		}
+	}
+
+	/**
+	 * Decrypts part of a file in the block format. Only the blocks holding the
+	 * range are read and decrypted.
+	 *
+	 * @param channel - the encrypted file.
+	 * @param plan    - the compiled key.
+	 * @param offset  - position of the first plaintext character, counting from 0.
+	 * @param length  - number of plaintext characters to decrypt.
+	 * @return - the decrypted characters; fewer than length if the range runs past
+	 *         the end of the text.
+	 * @throws IOException - if the file cannot be read or is not valid.
+	 */
+	public static byte[] decryptRange(FileChannel channel, KeyPlan plan, long offset, int length)
+			throws IOException {
+		String header = readLine(channel, 0, TAIL_BYTES);
+		int blockSize = parseHeader(header);
+		long dataStart = header.length() + 1;
+
+		// The trailer is after the last line break in the file.
+		long size = channel.size();
+		int tailLength = (int) Math.min(TAIL_BYTES, size - dataStart);
+		if (tailLength < 2) {
+			throw new IOException("The file is truncated: its trailer is missing");
+		}
+		ByteBuffer tail = ByteBuffer.allocate(tailLength);
+		readFully(channel, tail, size - tailLength);
+		int lineBreak = lastIndexOf(tail.array(), tailLength - 1, (byte) '\n');
+		if (lineBreak < 0 || tail.get(tailLength - 1) != '\n') {
+			throw new IOException("The file is truncated: its trailer is missing");
+		}
+		long plaintextLength = parseTrailer(new String(tail.array(), lineBreak, tailLength - lineBreak,
+				StandardCharsets.US_ASCII)).getOrDefault("length", -1L);
+		if (size - tailLength + lineBreak - dataStart != 2 * plaintextLength) {
+			throw new IOException("The file is corrupt: its length does not match its trailer");
+		}
+
+		if (offset >= plaintextLength) {
+			return new byte[0];
+		}
+		length = (int) Math.min(length, plaintextLength - offset);
+		byte[] result = new byte[length];
+		int filled = 0;
+
+		for (long block = offset / blockSize; filled < length; block++) {
+			long blockStart = block * blockSize;
+			int blockLength = (int) Math.min(blockSize, plaintextLength - blockStart);
+			ByteBuffer blockCiphertext = ByteBuffer.allocate(2 * blockLength);
+			readFully(channel, blockCiphertext, dataStart + 2 * blockStart);
+
+			byte[] blockPlaintext = new byte[blockLength];
+			plan.decryptBlock(blockCiphertext.array(), 0, 2 * blockLength, blockPlaintext, 0);
+
+			int from = (int) Math.max(0, offset - blockStart);
+			int count = Math.min(blockLength - from, length - filled);
+			System.arraycopy(blockPlaintext, from, result, filled, count);
+			filled += count;
+		}
+		return result;
+	}
+
+	/*
+	 * Reads the format version and block size from the header line.
+	 */
+	static int parseHeader(String header) throws IOException {
+		String[] parts = header.split(" ");
+		if (parts.length < 3 || !parts[0].equals(MAGIC)) {
+			throw new IOException("The file is not in the block format");
+		}
+		if (!parts[1].equals(String.valueOf(VERSION))) {
+			throw new IOException("Unsupported block format version: " + parts[1]);
+		}
+		Map<String, Long> fields = parseFields(parts, 2);
+		Long blockSize = fields.get("block");
+		if (blockSize == null || blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+			throw new IOException("The file has an invalid block size");
+		}
+		return blockSize.intValue();
+	}
+
+	/**
+	 * Reads the fields of a trailer line, e.g. "#length=123456 crc=42".
+	 *
+	 * @param trailer - the trailer line.
+	 * @return - the value of each field by name.
+	 * @throws IOException - if the trailer is not valid.
+	 */
+	public static Map<String, Long> parseTrailer(String trailer) throws IOException {
+		String text = trailer.strip();
+		if (!text.startsWith("#")) {
+			throw new IOException("The file is corrupt: its trailer is not valid");
+		}
+		return parseFields(text.substring(1).split(" "), 0);
+	}
+
+	/*
+	 * Parses name=number pairs.
+	 */
+	private static Map<String, Long> parseFields(String[] parts, int from) throws IOException {
+		Map<String, Long> fields = new HashMap<>();
+		for (int i = from; i < parts.length; i++) {
+			int equals = parts[i].indexOf('=');
+			if (equals < 0) {
+				continue;
+			}
+			try {
+				fields.put(parts[i].substring(0, equals), Long.parseLong(parts[i].substring(equals + 1)));
+			} catch (NumberFormatException e) {
+				throw new IOException("The file is corrupt: its header or trailer is not valid");
+			}
+		}
+		return fields;
+	}
+
+	/*
+	 * Checks the number of characters decrypted against the trailer.
+	 */
+	static void checkLength(Map<String, Long> trailer, long length) throws IOException {
+		if (trailer.getOrDefault("length", -1L) != length) {
+			throw new IOException("The file is corrupt: its length does not match its trailer");
+		}
+	}
+
+	/*
+	 * Checks a checksum against the trailer, if the trailer has it.
+	 */
+	static void checkCrc(Map<String, Long> trailer, String field, CRC32C crc) throws IOException {
+		Long expected = trailer.get(field);
+		if (expected != null && expected != crc.getValue()) {
+			throw new IOException("The file is corrupt: its " + field + " checksum does not match");
+		}
+	}
+
+	/*
+	 * Checks that the block size is in range.
+	 */
+	static void checkBlockSize(int blockSize) {
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("The block size must be between 1 and " + MAX_BLOCK_SIZE);
+		}
+	}
+
+	/*
+	 * How many blocks to handle at once, so a batch is about the buffer size set
+	 * in the Metrics MBean (4MB unless it is changed).
+	 */
+	private static int batchBlocks(int blockSize) {
+		return Math.max(1, Metrics.get().getBufferBytes() / blockSize);
+	}
+
+	/*
+	 * The number of blocks needed for count characters, counting a part block.
+	 */
+	private static int blocksIn(int count, int blockSize) {
+		return (count + blockSize - 1) / blockSize;
+	}
+
+	/*
+	 * Finds the first position of a byte, or -1.
+	 */
+	private static int indexOf(byte[] bytes, int count, byte value) {
+		for (int i = 0; i < count; i++) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Finds the last position of a byte before the given position, or -1.
+	 */
+	private static int lastIndexOf(byte[] bytes, int before, byte value) {
+		for (int i = before - 1; i >= 0; i--) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Reads one line from a stream, without the line break.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int character;
+		while ((character = in.read()) != '\n') {
+			if (character < 0 || line.length() > TAIL_BYTES) {
+				throw new IOException("The file is not in the block format");
+			}
+			line.append((char) character);
+		}
+		return line.toString();
+	}
+
+	/*
+	 * Reads the line starting at a position in a file, without the line break.
+	 */
+	private static String readLine(FileChannel channel, long position, int maxLength) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(maxLength, channel.size() - position));
+		readFully(channel, buffer, position);
+		int end = indexOf(buffer.array(), buffer.limit(), (byte) '\n');
+		if (end < 0) {
+			throw new IOException("The file is not in the block format");
+		}
+		return new String(buffer.array(), 0, end, StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * Fills a buffer from a position in a file.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("The file is truncated");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+package ie.atu.sw;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A journal of the files that a directory job has already completed. Each line
+ * records the name of an input file and the output file it was written to. The
+ * journal is flushed to disk periodically, so if the program is interrupted the
+ * job can be resumed from the last flushed file instead of starting again.
+ */
+public class Checkpoint implements Closeable {
+	private static final int FLUSH_EVERY_FILES = 256; 	// Force the journal to disk after this many files.
+	private static final long FLUSH_EVERY_MILLIS = 2000; 	// ...or after this much time has passed.
+	private static final String HEADER = "# input=";
+
+	private File journalFile;
+	private Set<String> completedInputs = ConcurrentHashMap.newKeySet(); 	// Read by every worker thread.
+	private FileOutputStream journalStream;
+	private BufferedWriter journalWriter;
+	private int unflushedEntries;
+	private long lastFlushTime;
+
+	/**
+	 * Constructor - opens the journal for a job writing files with the given
+	 * prefix into the output directory. If resuming, the files recorded in an
+	 * existing journal are loaded and the journal is compacted; otherwise a new
+	 * empty journal is started.
+	 *
+	 * @param inputDirectory  - the directory the job reads from.
+	 * @param outputDirectory - the directory the job writes to (and where the
+	 *                        journal is kept).
+	 * @param outputPrefix    - prefix of the output files, e.g. "encrypted".
+	 * @param resume          - true to continue from an existing journal.
+	 * @throws IOException - if the journal cannot be read or written, or belongs
+	 *                     to a different input directory.
+	 */
+	public Checkpoint(File inputDirectory, File outputDirectory, String outputPrefix, boolean resume)
+			throws IOException {
+		this.journalFile = journalFile(outputDirectory, outputPrefix);
+		String inputPath = inputDirectory.getAbsolutePath();
+		Set<String> completedLines = new LinkedHashSet<>();
+
+		if (resume && journalFile.exists()) {
+			completedLines = loadJournal(inputPath);
+		}
+
+		// Rewrite the journal with only the complete entries, so a half-written last
+		// line from a crash does not run into the next entry. The new journal is
+		// forced to disk under a temporary name and then renamed over the old one,
+		// so a crash while rewriting it still leaves one of the two whole.
+		File temporaryFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+		try (FileOutputStream temporaryStream = new FileOutputStream(temporaryFile);
+				BufferedWriter temporaryWriter = new BufferedWriter(new OutputStreamWriter(temporaryStream))) {
+			temporaryWriter.write(HEADER + inputPath);
+			temporaryWriter.newLine();
+			for (String line : completedLines) {
+				temporaryWriter.write(line);
+				temporaryWriter.newLine();
+			}
+			temporaryWriter.flush();
+			temporaryStream.getChannel().force(false);
+		}
+		Files.move(temporaryFile.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+
+		this.journalStream = new FileOutputStream(journalFile, true);
+		this.journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream));
+		lastFlushTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks if a journal exists for the given output directory and prefix.
+	 *
+	 * @param outputDirectory - the directory the job writes to.
+	 * @param outputPrefix    - prefix of the output files.
+	 * @return - true if an interrupted job left a journal behind.
+	 */
+	public static boolean exists(String outputDirectory, String outputPrefix) {
+		return journalFile(new File(outputDirectory), outputPrefix).exists();
+	}
+
+	/**
+	 * Checks if an input file was already completed by an earlier run.
+	 *
+	 * @param inputName - the name of the input file.
+	 * @return - true if the file is recorded in the journal.
+	 */
+	public boolean isCompleted(String inputName) {
+		return completedInputs.contains(inputName);
+	}
+
+	/**
+	 * Records an input file as completed. The entry is buffered and only forced to
+	 * disk every so many files or seconds.
+	 *
+	 * @param inputName  - the name of the input file.
+	 * @param outputName - the name of the output file it was written to.
+	 * @throws IOException - if the journal cannot be written.
+	 */
+	public synchronized void markCompleted(String inputName, String outputName) throws IOException {
+		completedInputs.add(inputName);
+		journalWriter.write(inputName + "\t" + outputName);
+		journalWriter.newLine();
+		unflushedEntries++;
+
+		if (unflushedEntries >= FLUSH_EVERY_FILES || System.currentTimeMillis() - lastFlushTime >= FLUSH_EVERY_MILLIS) {
+			flush();
+		}
+	}
+
+	/**
+	 * Called once every file is done. The journal is no longer needed, so it is
+	 * closed and deleted.
+	 *
+	 * @throws IOException - if the journal cannot be closed.
+	 */
+	public void complete() throws IOException {
+		close();
+		journalFile.delete();
+	}
+
+	/**
+	 * Flushes any buffered entries and closes the journal, leaving it on disk so
+	 * the job can be resumed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (journalWriter != null) {
+			flush();
+			journalWriter.close();
+			journalWriter = null;
+		}
+	}
+
+	/*
+	 * Writes the buffered entries and forces them to disk.
+	 */
+	private void flush() throws IOException {
+		journalWriter.flush();
+		journalStream.getChannel().force(false);
+		unflushedEntries = 0;
+		lastFlushTime = System.currentTimeMillis();
+	}
+
+	/*
+	 * Reads the complete entries of an existing journal. Lines without a tab were
+	 * cut off by a crash and are ignored.
+	 */
+	private Set<String> loadJournal(String inputPath) throws IOException {
+		Set<String> lines = new LinkedHashSet<>();
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+			String header = reader.readLine();
+			if (header != null && !header.equals(HEADER + inputPath)) {
+				throw new IOException("The checkpoint in the output directory belongs to a different input directory: "
+						+ header.substring(Math.min(header.length(), HEADER.length())));
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					completedInputs.add(line.substring(0, tab));
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	/*
+	 * The journal is a hidden file in the output directory named after the prefix.
+	 */
+	private static File journalFile(File outputDirectory, String outputPrefix) {
+		return new File(outputDirectory, "." + outputPrefix + ".journal");
+	}
+}
@@ -0,0 +1,425 @@
+package ie.atu.sw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the application from the command line instead of the menu, so that
+ * encryption and decryption jobs can be scripted. Running the application
+ * without any arguments still starts the menu.
+ */
+public class CommandLine {
+	private Map<String, String> options = new HashMap<>();
+	private Set<String> flags = new HashSet<>();
+	private PrintStream out;
+	private PrintStream err;
+
+	/**
+	 * Constructor - a command line that prints to the console.
+	 */
+	public CommandLine() {
+		this(System.out, System.err);
+	}
+
+	/**
+	 * Constructor - a command line that prints to the given streams, e.g. a
+	 * daemon client's connection.
+	 *
+	 * @param out - receives the normal output.
+	 * @param err - receives error messages.
+	 */
+	public CommandLine(PrintStream out, PrintStream err) {
+		this.out = out;
+		this.err = err;
+	}
+
+	/**
+	 * Runs the command given in the arguments.
+	 *
+	 * @param args - the command followed by its options.
+	 * @return - the exit status, 0 if the command succeeded.
+	 */
+	public int run(String[] args) {
+		if (args.length == 0) {
+			printUsage();
+			return 1;
+		}
+		parseOptions(args);
+
+		PrometheusExporter exporter = null;
+		try {
+			exporter = metricsExporter();
+			switch (args[0]) {
+			case "encrypt" -> {
+				if (usePipes()) {
+					PipeMode pipe = new PipeMode(new KeyPlan(key().getKey()));
+					if (flags.contains("--records")) {
+						pipe.encryptRecords();
+					} else {
+						pipe.encrypt(intOption("--block-size", BlockFormat.DEFAULT_BLOCK_SIZE), flags.contains("--checksum"));
+					}
+					return 0;
+				}
+				Keyring keyring = keyring();
+				Encryption encryption = new Encryption(inputDirectory(), outputDirectory(),
+						keyring == null ? key() : new Key());
+				encryption.setKeyring(keyring);
+				encryption.setBlockSize(intOption("--block-size", 0));
+				encryption.setChecksums(flags.contains("--checksum"));
+				encryption.setRecords(flags.contains("--records"));
+				encryption.setThreads(threads());
+				encryption.setMemoryGovernor(memoryGovernor());
+				encryption.setSchedule(schedule());
+				encryption.setSyncGroup(intOption("--sync-group", 0));
+				encryption.setDeduplicate(flags.contains("--dedup"));
+				encryption.setSharded(flags.contains("--shards"));
+				encryption.setLeaseMillis(flags.contains("--worker") ? longOption("--lease", 30) * 1000 : 0);
+				encryption.setHistory(history());
+				int files = encryption.encryptDirectory(flags.contains("--resume"));
+				out.println("Encrypted " + files + " file(s) in " + encryption.getMakespanMillis() + " ms.");
+				encryption.getReports().forEach(out::println);
+			}
+			case "decrypt" -> {
+				if (usePipes()) {
+					new PipeMode(new KeyPlan(key().getKey())).decrypt();
+					return 0;
+				}
+				Keyring keyring = keyring();
+				Decryption decryption = new Decryption(inputDirectory(), outputDirectory(),
+						keyring == null ? key() : new Key());
+				decryption.setKeyring(keyring);
+				decryption.setThreads(threads());
+				decryption.setMemoryGovernor(memoryGovernor());
+				decryption.setSchedule(schedule());
+				decryption.setSyncGroup(intOption("--sync-group", 0));
+				decryption.setDeduplicate(flags.contains("--dedup"));
+				decryption.setSharded(flags.contains("--shards"));
+				decryption.setLeaseMillis(flags.contains("--worker") ? longOption("--lease", 30) * 1000 : 0);
+				decryption.setHistory(history());
+				int files = decryption.decryptDirectory(flags.contains("--resume"));
+				out.println("Decrypted " + files + " file(s) in " + decryption.getMakespanMillis() + " ms.");
+				decryption.getReports().forEach(out::println);
+			}
+			case "watch" -> {
+				Encryption encryption = new Encryption(inputDirectory(), outputDirectory(), key());
+				encryption.setBlockSize(intOption("--block-size", 0));
+				encryption.setChecksums(flags.contains("--checksum"));
+				encryption.setMemoryGovernor(memoryGovernor());
+				new WatchMode(encryption, options.get("-i"), options.get("-o"), intOption("--debounce", 50),
+						threads()).run();
+			}
+			case "range" -> {
+				Decryption decryption = new Decryption(new InputDirectory(), new OutputDirectory(), key());
+				File encryptedFile = new File(requireOption("-f", "encrypted file"));
+				out.println(decryption.decryptRange(encryptedFile, longOption("--offset", 0),
+						intOption("--length", 1000)));
+			}
+			case "record" -> {
+				Decryption decryption = new Decryption(new InputDirectory(), new OutputDirectory(), key());
+				File encryptedFile = new File(requireOption("-f", "encrypted file"));
+				decryption.readRecords(encryptedFile, longOption("--index", 0), intOption("--count", 1))
+						.forEach(out::println);
+			}
+			case "append" -> {
+				Encryption encryption = new Encryption(new InputDirectory(), new OutputDirectory(), key());
+				File encryptedFile = new File(requireOption("-f", "encrypted file"));
+				long records = encryption.appendRecords(encryptedFile, System.in);
+				out.println("Appended " + records + " record(s) to " + encryptedFile + ".");
+			}
+			case "verify" -> {
+				String directory = requireOption("-i", "directory to verify");
+				return Integrity.verifyDirectory(directory, out) == 0 ? 0 : 2;
+			}
+			case "selfcheck" -> {
+				SelfCheck selfCheck = new SelfCheck(out);
+				selfCheck.setSeed(longOption("--seed", 44));
+				selfCheck.setCases(intOption("--cases", 500));
+				return selfCheck.run() == 0 ? 0 : 2;
+			}
+			case "history" -> {
+				RunHistory history = history();
+				if (history == null) {
+					throw new IllegalArgumentException("--no-history leaves no history to show");
+				}
+				history.report(intOption("--runs", 20)).forEach(out::println);
+			}
+			case "daemon" -> new Daemon(socketFile()).run();
+			case "client" -> {
+				// Everything after the client's own --socket option is sent as it is.
+				int first = args.length > 2 && args[1].equals("--socket") ? 3 : 1;
+				if (first >= args.length) {
+					throw new IllegalArgumentException("Missing the command to send to the daemon");
+				}
+				return new DaemonClient(out).send(socketFile(), Arrays.copyOfRange(args, first, args.length));
+			}
+			default -> {
+				err.println("Unknown command: " + args[0]);
+				printUsage();
+				return 1;
+			}
+			}
+			return 0;
+		} catch (Exception e) {
+			err.println("Error! " + e.getMessage());
+			return 1;
+		} finally {
+			if (exporter != null) {
+				exporter.close();
+			}
+		}
+	}
+
+	/*
+	 * Splits the arguments after the command into options with a value, e.g.
+	 * "-i dir", and flags on their own, e.g. "--resume".
+	 */
+	private void parseOptions(String[] args) {
+		for (int i = 1; i < args.length; i++) {
+			if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+				options.put(args[i], args[i + 1]);
+				i++;
+			} else {
+				flags.add(args[i]);
+			}
+		}
+	}
+
+	/*
+	 * Without -i and -o, encrypt and decrypt read standard input and write
+	 * standard output.
+	 */
+	private boolean usePipes() {
+		if (options.containsKey("-i") != options.containsKey("-o")) {
+			throw new IllegalArgumentException("Give both -i and -o, or neither to use standard input and output");
+		}
+		return !options.containsKey("-i");
+	}
+
+	/*
+	 * The input directory given with -i, or a ZIP archive. It must already exist.
+	 */
+	private InputDirectory inputDirectory() {
+		String path = requireOption("-i", "input directory");
+		if (ZipJob.isZip(path) ? !new File(path).isFile() : !new File(path).isDirectory()) {
+			throw new IllegalArgumentException("The input directory does not exist: " + path);
+		}
+		InputDirectory inputDirectory = new InputDirectory();
+		inputDirectory.setInputDirectory(path);
+		return inputDirectory;
+	}
+
+	/*
+	 * The output directory given with -o, or a ZIP archive to write. The
+	 * directory, or the one the archive goes in, is created if it does not exist.
+	 */
+	private OutputDirectory outputDirectory() {
+		String path = requireOption("-o", "output directory");
+		OutputDirectory outputDirectory = new OutputDirectory();
+		String directory = ZipJob.isZip(path) ? new File(path).getAbsoluteFile().getParent() : path;
+		if (!outputDirectory.createDirectory(directory)) {
+			throw new IllegalArgumentException("Failed to create the output directory: " + path);
+		}
+		outputDirectory.setOutputDirectory(path);
+		return outputDirectory;
+	}
+
+	/*
+	 * The key given with -k, checked against the same rules as the menu.
+	 */
+	private Key key() {
+		String keyText = requireOption("-k", "key").trim().toUpperCase();
+		String problem = Key.problemWith(keyText);
+		if (problem != null) {
+			throw new IllegalArgumentException("Invalid key " + keyText + ": " + problem);
+		}
+		Key key = new Key();
+		key.setKey(keyText);
+		return key;
+	}
+
+	/*
+	 * The keyring given with --keyring, which takes the place of -k, or null.
+	 */
+	private Keyring keyring() throws IOException {
+		String file = options.get("--keyring");
+		return file == null ? null : Keyring.load(new File(file));
+	}
+
+	/*
+	 * The number of worker threads given with --threads, by default one per
+	 * processor.
+	 */
+	private int threads() {
+		int threads = intOption("--threads", Runtime.getRuntime().availableProcessors());
+		if (threads < 1) {
+			throw new IllegalArgumentException("--threads must be at least 1");
+		}
+		return threads;
+	}
+
+	/*
+	 * A memory governor with the budget given in megabytes with --memory-budget,
+	 * by default half of the maximum heap size.
+	 */
+	private MemoryGovernor memoryGovernor() {
+		long budget = longOption("--memory-budget", MemoryGovernor.defaultBudget() / (1024 * 1024));
+		return new MemoryGovernor(budget * 1024 * 1024);
+	}
+
+	/*
+	 * The order files are started in, given with --schedule: "largest" (the
+	 * default), "smallest" or "name".
+	 */
+	private BatchJob.Schedule schedule() {
+		String schedule = options.getOrDefault("--schedule", "largest");
+		return switch (schedule) {
+		case "largest" -> BatchJob.Schedule.LARGEST_FIRST;
+		case "smallest" -> BatchJob.Schedule.SMALLEST_FIRST;
+		case "name" -> BatchJob.Schedule.NAME;
+		default -> throw new IllegalArgumentException("--schedule must be largest, smallest or name: " + schedule);
+		};
+	}
+
+	/*
+	 * The history runs are recorded in: the file given with --history, or the
+	 * default one. Null with --no-history.
+	 */
+	private RunHistory history() {
+		if (flags.contains("--no-history")) {
+			return null;
+		}
+		return new RunHistory(options.containsKey("--history") ? new File(options.get("--history"))
+				: RunHistory.defaultFile());
+	}
+
+	/*
+	 * Starts exporting the metrics in the Prometheus format if --metrics-file
+	 * or --metrics-port was given, otherwise returns null.
+	 */
+	private PrometheusExporter metricsExporter() throws IOException {
+		String textFile = options.get("--metrics-file");
+		int port = intOption("--metrics-port", 0);
+		if (textFile == null && port == 0) {
+			return null;
+		}
+		return new PrometheusExporter(textFile == null ? null : new File(textFile), port, err);
+	}
+
+	/*
+	 * The daemon's socket file given with --socket, or the default one.
+	 */
+	private File socketFile() {
+		String path = options.get("--socket");
+		return path == null ? Daemon.defaultSocketFile() : new File(path);
+	}
+
+	/*
+	 * Gets a whole number option, or the default if it was not given.
+	 */
+	private int intOption(String option, int defaultValue) {
+		long value = longOption(option, defaultValue);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(option + " is out of range: " + value);
+		}
+		return (int) value;
+	}
+
+	/*
+	 * Gets a whole number option that may be larger than an int.
+	 */
+	private long longOption(String option, long defaultValue) {
+		String value = options.get(option);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(option + " must be a whole number: " + value);
+		}
+	}
+
+	/*
+	 * Gets the value of a required option or explains what is missing.
+	 */
+	private String requireOption(String option, String description) {
+		String value = options.get(option);
+		if (value == null) {
+			throw new IllegalArgumentException("Please give the " + description + " with " + option);
+		}
+		return value;
+	}
+
+	/**
+	 * Prints the commands and options that can be used.
+	 */
+	private void printUsage() {
+		out.println("Usage: java ie.atu.sw.Runner [command] [options]");
+		out.println("");
+		out.println("Run without a command to start the menu. Commands:");
+		out.println("  encrypt -i <input dir> -o <output dir> -k <key>|--keyring <file> [--resume] [--block-size <n>]");
+		out.println("          [--checksum] [--threads <n>] [--memory-budget <MB>] [--schedule <order>]");
+		out.println("          [--sync-group <n>] [--dedup] [--shards] [--worker [--lease <seconds>]] [--records]");
+		out.println("  decrypt -i <input dir> -o <output dir> -k <key>|--keyring <file> [--resume] [--threads <n>]");
+		out.println("          [--memory-budget <MB>] [--schedule <order>] [--sync-group <n>] [--dedup]");
+		out.println("          [--shards] [--worker [--lease <seconds>]]");
+		out.println("  watch   -i <input dir> -o <output dir> -k <key> [--debounce <ms>] [--threads <n>]");
+		out.println("          [--block-size <n>] [--checksum]");
+		out.println("  range   -f <encrypted file> -k <key> [--offset <n>] [--length <n>]");
+		out.println("  record  -f <encrypted file> -k <key> [--index <n>] [--count <n>]");
+		out.println("  append  -f <encrypted file> -k <key>                (records from standard input)");
+		out.println("  verify  -i <encrypted dir>");
+		out.println("  encrypt -k <key> [--block-size <n>] [--checksum] [--records]");
+		out.println("                                                      (standard input to standard output)");
+		out.println("  decrypt -k <key>                                    (standard input to standard output)");
+		out.println("  selfcheck [--seed <n>] [--cases <n>]");
+		out.println("  history [--runs <n>] [--history <file>]");
+		out.println("  daemon  [--socket <file>]");
+		out.println("  client  [--socket <file>] <command> [options]");
+		out.println("");
+		out.println("For encrypt and decrypt, -i and/or -o can also be a .zip archive, read and written without");
+		out.println("extracting it.");
+		out.println("Any command can also take [--metrics-file <file>] [--metrics-port <port>].");
+		out.println("");
+		out.println("  --resume      continue an interrupted job from its checkpoint");
+		out.println("  --keyring     file of \"pattern key\" lines giving each file in the input directory and its");
+		out.println("                subdirectories its own key, instead of -k");
+		out.println("  --debounce    how long a watched file must be unchanged before it is encrypted (default 50)");
+		out.println("  --threads     number of worker threads (default: one per processor)");
+		out.println("  --memory-budget");
+		out.println("                megabytes of memory for files processed at once (default: half the heap)");
+		out.println("  --schedule    order files are started in: largest (default), smallest or name");
+		out.println("  --sync-group  write files durably, forcing this many to disk together (default 0: off)");
+		out.println("  --dedup       process identical files once and hard-link the other outputs to it");
+		out.println("  --shards      write the outputs two directories deep with an " + ShardedLayout.INDEX_FILE
+				+ " index");
+		out.println("  --worker      share the job with other processes using the same output directory");
+		out.println("  --lease       seconds before the files of a worker that died are taken over (default 30)");
+		out.println("  --block-size  write the block format with this many characters per block,");
+		out.println("                e.g. " + BlockFormat.DEFAULT_BLOCK_SIZE + " (default 0: one matrix per file)");
+		out.println("  --checksum    write CRC32C checksums so files can be checked with verify");
+		out.println("  --records     encrypt each line as its own record, which record can read and append can add to");
+		out.println("  --index       first record to decrypt, counting from 0 (default 0)");
+		out.println("  --count       number of records to decrypt (default 1)");
+		out.println("  --socket      the daemon's Unix socket (default: " + Daemon.defaultSocketFile() + ")");
+		out.println("  --seed        seed for the random cases of selfcheck, to repeat a run (default 44)");
+		out.println("  --cases       random cases per engine in selfcheck (default 500)");
+		out.println("  --history     file encrypt and decrypt runs are recorded in (default: " + RunHistory.defaultFile()
+				+ ")");
+		out.println("  --no-history  do not record the run");
+		out.println("  --runs        number of recent runs history lists (default 20)");
+		out.println("  --metrics-file");
+		out.println("                keep rewriting this file with Prometheus metrics, for the node exporter");
+		out.println("  --metrics-port");
+		out.println("                serve Prometheus metrics at http://host:port/metrics while running");
+		out.println("  --offset      first plaintext character to decrypt, counting from 0 (default 0)");
+		out.println("  --length      number of plaintext characters to decrypt (default 1000)");
+	}
+
+}
@@ -0,0 +1,179 @@
+package ie.atu.sw;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the application running in the background and runs commands sent to it
+ * over a Unix domain socket. Starting a new JVM for every small job costs far
+ * more than the job itself, because the cipher code has to be loaded and
+ * compiled again each time. The daemon pays that once and stays warm.
+ *
+ * The protocol is plain text, so any program that can write to a Unix socket
+ * can be a client. Each request is one line holding a command and its options
+ * separated by tabs, exactly as they would be given to {@link CommandLine}.
+ * The output of the command is sent back as it is printed, followed by a line
+ * "#exit=status". Several requests can be sent over one connection, one after
+ * the other. Paths are used as given, so they should be absolute.
+ */
+public class Daemon {
+	static final String EXIT_PREFIX = "#exit=";
+	// Commands that cannot be run inside the daemon.
+	private static final Set<String> REFUSED_COMMANDS = Set.of("daemon", "client", "watch");
+	private static final Set<String> PIPE_COMMANDS = Set.of("encrypt", "decrypt"); 	// Use pipes without -i and -o.
+	private static final int WARMUP_JOBS = 200; // Small jobs run at start-up to compile the code.
+
+	private File socketFile;
+
+	/**
+	 * Constructor - a new daemon listening on the given socket file.
+	 *
+	 * @param socketFile - the socket file to create.
+	 */
+	public Daemon(File socketFile) {
+		this.socketFile = socketFile;
+	}
+
+	/**
+	 * @return - the socket file used when none is given, in the temporary
+	 *         directory and named after the user.
+	 */
+	public static File defaultSocketFile() {
+		return new File(System.getProperty("java.io.tmpdir"), "adfgvx-" + System.getProperty("user.name") + ".sock");
+	}
+
+	/**
+	 * Listens for clients until the application is stopped. Each connection is
+	 * served on its own thread.
+	 *
+	 * @throws IOException - if the socket cannot be created, e.g. because another
+	 *                     daemon is already using it.
+	 */
+	public void run() throws IOException {
+		removeStaleSocket();
+		ExecutorService connections = Executors.newCachedThreadPool();
+
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socketFile.toPath()));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> socketFile.delete()));
+			warmUp();
+			System.out.println("Daemon listening on " + socketFile + " (press Ctrl+C to stop).");
+
+			while (true) {
+				SocketChannel client = server.accept();
+				connections.execute(() -> serve(client));
+			}
+		} finally {
+			connections.shutdownNow();
+			socketFile.delete();
+		}
+	}
+
+	/*
+	 * Runs the requests sent over one connection until the client closes it.
+	 */
+	private void serve(SocketChannel client) {
+		try (client;
+				BufferedReader requests = new BufferedReader(
+						new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+				PrintStream replies = new PrintStream(Channels.newOutputStream(client), true,
+						StandardCharsets.UTF_8)) {
+			String request;
+			while ((request = requests.readLine()) != null) {
+				if (request.isBlank()) {
+					continue;
+				}
+				String[] args = request.split("\t");
+				int status;
+				if (REFUSED_COMMANDS.contains(args[0])) {
+					replies.println("Error! The " + args[0] + " command cannot be run through the daemon.");
+					status = 1;
+				} else if (args[0].equals("append")) {
+					replies.println("Error! The append command reads standard input, which the daemon cannot use.");
+					status = 1;
+				} else if (PIPE_COMMANDS.contains(args[0])
+						&& !(Arrays.asList(args).contains("-i") && Arrays.asList(args).contains("-o"))) {
+					replies.println("Error! The daemon cannot use standard input and output; give -i and -o.");
+					status = 1;
+				} else {
+					status = new CommandLine(replies, replies).run(args);
+				}
+				replies.println(EXIT_PREFIX + status);
+			}
+		} catch (IOException e) {
+			System.err.println("Error! Lost a client connection: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * A socket file left behind by a daemon that was killed is removed. If a
+	 * daemon still answers on it, this one does not start.
+	 */
+	private void removeStaleSocket() throws IOException {
+		if (!socketFile.exists()) {
+			return;
+		}
+		boolean answered;
+		try {
+			SocketChannel.open(UnixDomainSocketAddress.of(socketFile.toPath())).close();
+			answered = true;
+		} catch (IOException e) {
+			answered = false;
+		}
+		if (answered) {
+			throw new IOException("A daemon is already running on " + socketFile);
+		}
+		Files.delete(socketFile.toPath());
+	}
+
+	/*
+	 * Runs small encryption and decryption jobs through the same code a request
+	 * uses, so it is loaded and compiled before the first real request arrives.
+	 */
+	private void warmUp() throws IOException {
+		File directory = Files.createTempDirectory("adfgvx-warmup").toFile();
+		File plaintext = new File(directory, "plain");
+		File encrypted = new File(directory, "encrypted");
+		File decrypted = new File(directory, "decrypted");
+		plaintext.mkdir();
+		Files.writeString(new File(plaintext, "warmup.txt").toPath(),
+				"The quick brown fox jumps over the lazy dog. ".repeat(100));
+		PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+		try {
+			for (int i = 0; i < WARMUP_JOBS; i++) {
+				new CommandLine(discard, discard).run(new String[] { "encrypt", "-i", plaintext.getPath(), "-o",
+						encrypted.getPath(), "-k", "WARMUP", "--threads", "1", "--no-history" });
+				new CommandLine(discard, discard).run(new String[] { "decrypt", "-i", encrypted.getPath(), "-o",
+						decrypted.getPath(), "-k", "WARMUP", "--threads", "1", "--no-history" });
+			}
+		} finally {
+			for (File folder : new File[] { plaintext, encrypted, decrypted }) {
+				File[] files = folder.listFiles();
+				for (File file : files == null ? new File[0] : files) {
+					file.delete();
+				}
+				folder.delete();
+			}
+			directory.delete();
+			// The warm-up jobs should not show up in the metrics.
+			Metrics.get().resetCounters();
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package ie.atu.sw;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Sends a command to a running {@link Daemon} and prints its output as it
+ * arrives. Relative paths are made absolute first, because the daemon may have
+ * been started in a different directory.
+ */
+public class DaemonClient {
+	// Options whose value is a path.
+	private static final Set<String> PATH_OPTIONS = Set.of("-i", "-o", "-f", "--keyring", "--history",
+			"--metrics-file");
+
+	private PrintStream out;
+
+	/**
+	 * Constructor - a new client that prints the daemon's replies.
+	 *
+	 * @param out - receives the output of the command.
+	 */
+	public DaemonClient(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Sends one command to the daemon and waits for it to finish.
+	 *
+	 * @param socketFile - the daemon's socket file.
+	 * @param args       - the command followed by its options.
+	 * @return - the exit status of the command in the daemon.
+	 * @throws IOException - if the daemon cannot be reached or the connection is
+	 *                     lost.
+	 */
+	public int send(File socketFile, String[] args) throws IOException {
+		StringBuilder request = new StringBuilder();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i > 0 && PATH_OPTIONS.contains(args[i - 1])) {
+				arg = new File(arg).getAbsolutePath();
+			}
+			if (arg.contains("\t") || arg.contains("\n")) {
+				throw new IllegalArgumentException("Arguments cannot contain tabs or line breaks: " + arg);
+			}
+			request.append(i > 0 ? "\t" : "").append(arg);
+		}
+
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.toPath()));
+				BufferedReader replies = new BufferedReader(
+						new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+				PrintStream requests = new PrintStream(Channels.newOutputStream(channel), true,
+						StandardCharsets.UTF_8)) {
+			requests.print(request.append('\n'));
+			requests.flush();
+
+			String reply;
+			while ((reply = replies.readLine()) != null) {
+				if (reply.startsWith(Daemon.EXIT_PREFIX)) {
+					return Integer.parseInt(reply.substring(Daemon.EXIT_PREFIX.length()));
+				}
+				out.println(reply);
+			}
+		}
+		throw new IOException("The daemon closed the connection before the command finished");
+	}
+
+}
@@ -1,19 +1,51 @@
 package ie.atu.sw;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /*
  * Class reponsible for decrypting. Works together with specified 
  * directories and a provided key. 
  */
 public class Decryption {
-	private InputDirectory inputDirectory;
-	private OutputDirectory outputDirectory;
-	private Key key;
+	private Supplier<String> inputDirectory;
+	private Supplier<String> outputDirectory;
+	private Supplier<char[]> key;
 	private Parser parser;
+	private char[] compiledKey; 	// Key the plan was compiled for.
+	private KeyPlan compiledPlan;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private MemoryGovernor memoryGovernor = new MemoryGovernor(MemoryGovernor.defaultBudget());
+	private BatchJob.Schedule schedule = BatchJob.Schedule.LARGEST_FIRST;
+	private long makespanMillis;
+	private int syncGroup;
+	private boolean deduplicate;
+	private boolean sharded;
+	private long leaseMillis;
+	private List<String> reports = new ArrayList<>();
+	private Keyring keyring;
+	private RunHistory history;
+	private Set<String> engines = ConcurrentHashMap.newKeySet();
+	private String regressionWarning;
 
 	// Polybius square that is used within this assignment.
 	// This is the body of the square.
@@ -37,6 +69,31 @@ public class Decryption {
 	 * @param key             - same key used to encrypted and decrypted files.
 	 */
 	public Decryption(InputDirectory inputDirectory, OutputDirectory outputDirectory, Key key) {
+		this(inputDirectory::getInputDirectory, outputDirectory::getOutputDirectory, key::getKey);
+	}
+
+	/**
+	 * Constructor - a new Decryption instance for fixed directories and an already
+	 * compiled key, which never reads from the console, for the library API.
+	 * 
+	 * @param inputDirectory  - the directory where encrypted files are read from.
+	 * @param outputDirectory - directory where decrypted files will be written to.
+	 * @param plan            - the compiled key the files were encrypted with.
+	 */
+	Decryption(File inputDirectory, File outputDirectory, KeyPlan plan) {
+		this(inputDirectory::getPath, outputDirectory::getPath, null);
+		char[] keyCharacters = plan.key();
+		this.key = () -> keyCharacters;
+		// The plan is already compiled, so compiledPlan() returns it as it is.
+		this.compiledKey = keyCharacters;
+		this.compiledPlan = plan;
+	}
+
+	/*
+	 * Reads the directories and the key through the given suppliers, so the menu's
+	 * changes to them are seen by the next run.
+	 */
+	private Decryption(Supplier<String> inputDirectory, Supplier<String> outputDirectory, Supplier<char[]> key) {
 		this.inputDirectory = inputDirectory;
 		this.outputDirectory = outputDirectory;
 		this.key = key;
@@ -44,8 +101,146 @@ public class Decryption {
 	}
 
 	/**
-	 * Decrypts the provided encrypted text using a specified key. The decryption
-	 * process involves several steps:
+	 * Handles the decryption. Reads the encrypted files from the input directory,
+	 * decrypts them and writes the decrypted text to the output directory.
+	 * 
+	 * @param resume - true to skip the files an interrupted decryption into the
+	 *               output directory already finished.
+	 */
+	public void handleDecryption(boolean resume) {
+		if(!directoriesAndKeyAreSet()) {
+			return;
+		}
+		try {
+			System.out.println("");
+			System.out.println("Please be patient! ");
+			System.out.println("Decrypting file(s)...");
+			System.out.println("");
+			decryptDirectory(resume);
+			System.out.println("Your Decryption is Complete!");
+			if (regressionWarning != null) {
+				System.out.println(regressionWarning);
+			}
+		} catch (Exception e) {
+			System.out.println("An error occurred while decrypting: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Decrypts every text file in the input directory into the output directory
+	 * as decrypted0.txt, decrypted1.txt... Files are numbered in name order.
+	 * 
+	 * @param resume - true to skip the files an interrupted run already finished.
+	 * @return - the number of files decrypted.
+	 * @throws IOException - if a file cannot be read or written.
+	 */
+	public int decryptDirectory(boolean resume) throws IOException {
+		if (ZipJob.isZip(inputDirectory.get()) || ZipJob.isZip(outputDirectory.get())) {
+			return decryptArchive(resume);
+		}
+		BatchJob job = new BatchJob(inputDirectory.get(), outputDirectory.get(),
+				"decrypted");
+		job.setThreads(threads);
+		job.setSchedule(schedule);
+		job.setSyncGroup(syncGroup);
+		job.setDeduplicate(deduplicate);
+		job.setSharded(sharded);
+		job.setLeaseMillis(leaseMillis);
+		if (leaseMillis > 0) {
+			job.setJobFingerprint(WorkLeases.fingerprint("decrypt key=" + String.valueOf(key.get())));
+		}
+		job.setKeyring(keyring);
+		Metrics.get().useMemoryGovernor(memoryGovernor);
+		engines.clear();
+		int files;
+		try {
+			files = job.run(this::decryptFile, resume);
+		} finally {
+			makespanMillis = job.getMakespanMillis();
+			reports = job.getReports();
+		}
+		recordRun(files, job.getBytesProcessed());
+		return files;
+	}
+
+	/*
+	 * Decrypts from or into a ZIP archive, without extracting it, see ZipJob.
+	 */
+	private int decryptArchive(boolean resume) throws IOException {
+		ZipJob.checkOptions(resume, syncGroup, deduplicate, sharded, leaseMillis);
+		if (keyring != null) {
+			throw new IllegalArgumentException("A keyring needs directories, not ZIP archives");
+		}
+		ZipJob job = new ZipJob(inputDirectory.get(), outputDirectory.get(),
+				"decrypted");
+		job.setThreads(threads);
+		job.setMemoryGovernor(memoryGovernor);
+		Metrics.get().useMemoryGovernor(memoryGovernor);
+		engines.clear();
+		int files;
+		try {
+			files = job.run(this::decryptEntry);
+		} finally {
+			makespanMillis = job.getMakespanMillis();
+			reports = job.getReports();
+		}
+		recordRun(files, job.getBytesProcessed());
+		return files;
+	}
+
+	/*
+	 * Decrypts one entry of an archive, in the record format, the block format or
+	 * as one matrix, told apart by its header the same as a file.
+	 */
+	private void decryptEntry(InputStream in, OutputStream out) throws IOException {
+		if (RecordFormat.isRecords(in)) {
+			engines.add("records");
+			RecordFormat.decrypt(in, out, compiledPlan());
+			return;
+		}
+		in.mark(1);
+		boolean blocked = in.read() == '#';
+		in.reset();
+		KeyPlan plan = compiledPlan();
+		if (blocked) {
+			engines.add("block");
+			BlockFormat.decrypt(in, out, plan);
+			return;
+		}
+		engines.add("matrix");
+		long lap = System.nanoTime();
+		byte[] ciphertext = parser.parseLetters(in);
+		lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+		byte[] plaintext = plan.decryptMatrix(ciphertext, 0, ciphertext.length);
+		FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+		out.write(plaintext);
+	}
+
+	/*
+	 * Adds the run to the history, if one is kept, and adds a warning to the
+	 * reports if it was slower than the comparable runs before it. A history that
+	 * cannot be written does not fail the decryption.
+	 */
+	private void recordRun(int files, long bytes) {
+		regressionWarning = null;
+		if (history == null || files == 0) {
+			return;
+		}
+		try {
+			regressionWarning = history.record(new RunHistory.Run(Instant.now(), "decrypt", files,
+					bytes, makespanMillis, Metrics.get().threadsOr(threads),
+					engines.isEmpty() ? "none" : String.join("+", new TreeSet<>(engines))));
+		} catch (IOException e) {
+			reports.add("Could not record the run in the history: " + e.getMessage());
+		}
+		if (regressionWarning != null) {
+			reports.add(regressionWarning);
+		}
+	}
+
+	/**
+	 * Decrypts a single file using the key. The decryption process involves
+	 * several steps:
 	 * 
 	 * 1. Sorting the key alphanumerically. 
 	 * 2. Determining the column order based on the sorted key. 
@@ -56,45 +251,287 @@ public class Decryption {
 	 * 7. Transposing the rows of the reordered matrix. 
 	 * 8. Decrypting the transposed rows using the ADFGVX cipher.
 	 * 
-	 * @param encryptedText - the text to be decrypted.
-	 * @param key           - the key used in the encryption process.
-	 * @return - the decrypted text.
+	 * @param inputFile  - the encrypted file.
+	 * @param outputFile - where the decrypted text is written.
+	 * @throws Exception - if the file cannot be read, decrypted or written.
 	 */
-	public void handleDecryption() {
-		if(!directoriesAndKeyAreSet()) {
-			return;
-		}
+	private void decryptFile(File inputFile, File outputFile) throws Exception {
+		// Wait for room in the memory budget before starting the file.
+		boolean records = RecordFormat.isRecords(inputFile);
+		boolean blocked = !records && BlockFormat.isBlocked(inputFile);
+		boolean streaming = records || blocked || memoryGovernor.useStreaming(inputFile.length());
+		long reservedMemory = memoryGovernor.acquire(inputFile.length(), streaming);
+
+		engines.add(records ? "records" : blocked ? "block" : streaming ? "streaming" : "matrix");
 		try {
-			System.out.println("");
-			System.out.println("Please be patient! ");
-			System.out.println("Decrypting file(s)...");
-			System.out.println("");
-			
-			String[] encryptedTexts = parser.parseFilesInDirectory(inputDirectory.getInputDirectory());
-			int fileNumber = 0;
-			for (String encryptedText : encryptedTexts) {
-				char[] sortedKey = orderKeyAlphanumerically(key.getKey());
-				int[] columnOrder = columnOrder(sortedKey, key.getKey());
-				char[][] emptyMatrix = setMatrixSize(encryptedText, key.getKey());
-				char[][] matrixWithKey = fillMatrixWithKey(sortedKey, emptyMatrix);
-				char[][] filledMatrix = fillMatrixColumnsWithText(encryptedText, matrixWithKey);
-				char[][] reorderedMatrix = reorderMatrix(filledMatrix, columnOrder);
-				String transposedRows = transposeRows(reorderedMatrix);
-				String decryptedText = decryptText(transposedRows);
-
-				File file = new File(outputDirectory.getOutputDirectory(), "decrypted" + fileNumber + ".txt");
-				try (FileWriter fileWriter = new FileWriter(file);
+			if (records) {
+				try (InputStream in = new FileInputStream(inputFile);
+						OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+					RecordFormat.decrypt(in, out, planFor(inputFile));
+				}
+			} else if (blocked) {
+				try (InputStream in = new FileInputStream(inputFile);
+						OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+					BlockFormat.decrypt(in, out, planFor(inputFile));
+				}
+			} else if (streaming) {
+				new LargeFileEngine(planFor(inputFile)).decrypt(inputFile, outputFile);
+			} else {
+				long lap = System.nanoTime();
+				String encryptedText = parser.parse(inputFile.getPath());
+				lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+				// A keyring's keys are only compiled, so its files take the compiled engine.
+				String decryptedText = keyring == null ? decryptMatrixText(encryptedText)
+						: new String(planFor(inputFile).decryptMatrix(encryptedText.getBytes(StandardCharsets.US_ASCII),
+								0, encryptedText.length()), StandardCharsets.US_ASCII);
+				lap = FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+
+				try (FileWriter fileWriter = new FileWriter(outputFile);
 						BufferedWriter bufferedWriter = new BufferedWriter(fileWriter)) {
 					bufferedWriter.write(decryptedText);
 				}
-				fileNumber++;
+				FileLatencies.lap(FileLatencies.Stage.WRITE, lap);
 			}
-			System.out.println("Your Decryption is Complete!");
-		} catch (Exception e) {
-			System.out.println("An error occurred while decrypting: " + e.getMessage());
+		} finally {
+			memoryGovernor.release(reservedMemory);
 		}
 	}
-	
+
+	/**
+	 * Decrypts text in the original single-matrix format with the current key:
+	 * undoes the columnar transposition and then decodes the pairs with the
+	 * Polybius square.
+	 * 
+	 * @param encryptedText - the encrypted text (ADFGVX letters only).
+	 * @return - the decrypted text.
+	 */
+	String decryptMatrixText(String encryptedText) {
+		char[] sortedKey = orderKeyAlphanumerically(key.get());
+		int[] columnOrder = columnOrder(sortedKey, key.get());
+		char[][] emptyMatrix = setMatrixSize(encryptedText, key.get());
+		char[][] matrixWithKey = fillMatrixWithKey(sortedKey, emptyMatrix);
+		char[][] filledMatrix = fillMatrixColumnsWithText(encryptedText, matrixWithKey);
+		char[][] reorderedMatrix = reorderMatrix(filledMatrix, columnOrder);
+		String transposedRows = transposeRows(reorderedMatrix);
+		return decryptText(transposedRows);
+	}
+
+	/**
+	 * Decrypts some of the records of a file in the record format, reading only
+	 * those records, see {@link RecordFormat}.
+	 * 
+	 * @param encryptedFile - a file written in the record format.
+	 * @param first         - the number of the first record, counting from 0.
+	 * @param count         - the number of records to decrypt.
+	 * @return - the decrypted records; fewer than count if they run past the last
+	 *         record.
+	 * @throws IOException - if the file cannot be read or is not valid.
+	 */
+	public List<String> readRecords(File encryptedFile, long first, int count) throws IOException {
+		return RecordFormat.readRecords(encryptedFile, compiledPlan(), first, count);
+	}
+
+	/**
+	 * Decrypts only part of an encrypted file, without reading the rest of it. For
+	 * a file in the block format, only the blocks holding the range are read. Each
+	 * plaintext character comes from two encoded characters, and the position of
+	 * each encoded character in the file can be worked out from the key's column
+	 * order and the column length. So for each column only the few rows that hold
+	 * the range are read, and the cost depends on the range length, not the file
+	 * size.
+	 * 
+	 * @param encryptedFile - a file written by the encryption (no line breaks).
+	 * @param offset        - position of the first plaintext character to
+	 *                      decrypt, counting from 0.
+	 * @param length        - number of plaintext characters to decrypt.
+	 * @return - the decrypted characters; fewer than length if the range runs past
+	 *         the end of the text.
+	 * @throws IOException - if the file cannot be read.
+	 */
+	public String decryptRange(File encryptedFile, long offset, int length) throws IOException {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("The offset and length cannot be negative");
+		}
+		char[] keyCharacters = key.get();
+		int columns = keyCharacters.length;
+		int[] columnOrder = columnOrder(orderKeyAlphanumerically(keyCharacters), keyCharacters);
+
+		if (RecordFormat.isRecords(encryptedFile)) {
+			throw new IllegalArgumentException("The file is in the record format: read it with the record command");
+		}
+		try (FileChannel channel = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.READ)) {
+			if (BlockFormat.isBlocked(encryptedFile)) {
+				return new String(BlockFormat.decryptRange(channel, compiledPlan(), offset, length),
+						StandardCharsets.US_ASCII);
+			}
+			long rows = channel.size() / columns;
+			long plaintextLength = rows * columns / 2;
+			if (offset >= plaintextLength) {
+				return "";
+			}
+			length = (int) Math.min(length, plaintextLength - offset);
+
+			// The encoded characters needed, and the rows of the matrix they are in.
+			long firstEncoded = offset * 2;
+			long lastEncoded = firstEncoded + length * 2L - 1;
+			long firstRow = firstEncoded / columns;
+			int rowCount = (int) (lastEncoded / columns - firstRow + 1);
+
+			// Each column is stored one after the other in sorted key order, so the rows
+			// needed from a column are next to each other in the file.
+			byte[][] columnParts = new byte[columns][rowCount];
+			for (int col = 0; col < columns; col++) {
+				long position = columnOrder[col] * rows + firstRow;
+				ByteBuffer buffer = ByteBuffer.wrap(columnParts[col]);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						throw new IOException("Unexpected end of file " + encryptedFile.getName());
+					}
+				}
+			}
+
+			StringBuilder decryptedText = new StringBuilder(length);
+			for (long encoded = firstEncoded; encoded < lastEncoded; encoded += 2) {
+				char first = (char) columnParts[(int) (encoded % columns)][(int) (encoded / columns - firstRow)];
+				char second = (char) columnParts[(int) ((encoded + 1) % columns)][(int) ((encoded + 1) / columns - firstRow)];
+				decryptedText.append(decryptedADFGVXCharacter(first, second));
+			}
+			return decryptedText.toString();
+		}
+	}
+
+	/**
+	 * Sets how many files are decrypted at the same time.
+	 * 
+	 * @param threads - the number of worker threads.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the governor that keeps the memory used by files decrypted at the same
+	 * time under a budget.
+	 * 
+	 * @param memoryGovernor - the governor to use.
+	 */
+	public void setMemoryGovernor(MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+	}
+
+	/**
+	 * Sets the order the files of a directory are started in.
+	 * 
+	 * @param schedule - the order to use.
+	 */
+	public void setSchedule(BatchJob.Schedule schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Writes the files durably, forcing them to disk a group at a time, see
+	 * {@link GroupCommit}.
+	 * 
+	 * @param syncGroup - how many files are forced to disk together, or 0 to not
+	 *                  force them.
+	 */
+	public void setSyncGroup(int syncGroup) {
+		this.syncGroup = syncGroup;
+	}
+
+	/**
+	 * Processes files with the same content only once, linking the others to its
+	 * output, see {@link Deduplicator}.
+	 * 
+	 * @param deduplicate - true to deduplicate.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Writes the output files two directories deep with an index, see
+	 * {@link ShardedLayout}.
+	 * 
+	 * @param sharded - true for the sharded layout.
+	 */
+	public void setSharded(boolean sharded) {
+		this.sharded = sharded;
+	}
+
+	/**
+	 * Shares the directory with other processes decrypting into the same output
+	 * directory, see {@link WorkLeases}.
+	 * 
+	 * @param leaseMillis - how long a claim on a file lasts if the process holding
+	 *                    it dies, or 0 to not share the directory.
+	 */
+	public void setLeaseMillis(long leaseMillis) {
+		this.leaseMillis = leaseMillis;
+	}
+
+	/**
+	 * Records each directory run in a history, so a run slower than comparable
+	 * runs before it is reported.
+	 * 
+	 * @param history - the history to record runs in, or null to not record them.
+	 */
+	public void setHistory(RunHistory history) {
+		this.history = history;
+	}
+
+	/**
+	 * The column order only depends on the key, so the key is compiled once and
+	 * reused for every file until the key changes.
+	 * 
+	 * @return - the compiled plan for the current key.
+	 */
+	public synchronized KeyPlan compiledPlan() {
+		boolean reused = compiledKey == key.get();
+		if (!reused) {
+			compiledPlan = new KeyPlan(key.get());
+			compiledKey = key.get();
+		}
+		Metrics.get().keyCacheLookup(reused);
+		return compiledPlan;
+	}
+
+	/**
+	 * Gives each file of a directory its own key from a keyring, instead of the
+	 * one key, see {@link Keyring}.
+	 * 
+	 * @param keyring - the keyring, or null to use the key for every file.
+	 */
+	public void setKeyring(Keyring keyring) {
+		this.keyring = keyring;
+	}
+
+	/*
+	 * The compiled key for a file of the input directory: its key in the keyring
+	 * if one is set, otherwise the key.
+	 */
+	private KeyPlan planFor(File inputFile) {
+		if (keyring == null) {
+			return compiledPlan();
+		}
+		return keyring.planFor(Keyring.relativePath(new File(inputDirectory.get()), inputFile));
+	}
+
+	/**
+	 * @return - summary lines from the last directory, e.g. how long forcing the
+	 *         files to disk took.
+	 */
+	public List<String> getReports() {
+		return reports;
+	}
+
+	/**
+	 * @return - how long the last directory took to decrypt, in milliseconds.
+	 */
+	public long getMakespanMillis() {
+		return makespanMillis;
+	}
+
 	/**
 	 * This methods checks if the input directory, output directory and/ or the key
 	 * are set before decrypting. If any/all of them are NOT set, a message is
@@ -104,18 +541,18 @@ public class Decryption {
 	 */
 	private boolean directoriesAndKeyAreSet() {
 		
-		if(inputDirectory.getInputDirectory() == null) {
+		if(inputDirectory.get() == null) {
 			System.out.println("Please select an input directory before continuing!");
 		}
-		if(outputDirectory.getOutputDirectory() == null) {
+		if(outputDirectory.get() == null) {
 			System.out.println("Please select an output directory before continuing!");
 		}
-		if(key.getKey() == null) {
+		if(key.get() == null) {
 			System.out.println("Please select a key before continuing!");
 		}
-		return inputDirectory.getInputDirectory() != null && 
-				outputDirectory.getOutputDirectory() != null &&
-				key.getKey() != null;
+		return inputDirectory.get() != null && 
+				outputDirectory.get() != null &&
+				key.get() != null;
 	}
 
 	
@@ -269,7 +706,7 @@ public class Decryption {
 	 * @return - the String containing the transposed rows.
 	 */
 	private String transposeRows(char[][] matrix) {
-		StringBuilder transposedRows = new StringBuilder();
+		StringBuilder transposedRows = new StringBuilder((matrix.length - 1) * matrix[0].length);
 
 		// Loop through each row skipping the first row; int row = 1
 		for (int row = 1; row < matrix.length; row++) {
@@ -288,42 +725,37 @@ public class Decryption {
 	 * @return the decrypted text.
 	 */
 	private String decryptText(String transposedRows) {
-		StringBuilder decryptedText = new StringBuilder();
+		StringBuilder decryptedText = new StringBuilder(transposedRows.length() / 2);
 
+		// The pair is passed as its two characters, so no String is created for each pair.
 		for (int i = 0; i < transposedRows.length() - 1; i += 2) {
-			String encryptedCharacter = Character.toString(transposedRows.charAt(i)) + transposedRows.charAt(i + 1);
-			char decryptedCharacter = decryptedADFGVXCharacter(encryptedCharacter);
+			char decryptedCharacter = decryptedADFGVXCharacter(transposedRows.charAt(i), transposedRows.charAt(i + 1));
 			decryptedText.append(decryptedCharacter);
 		}
 		return decryptedText.toString();
 	}
 
 	/**
-	 * Decrypts a ADFGVX character pair using the Polybius square above.
+	 * Decrypts a ADFGVX character pair given as its two characters.
 	 * 
-	 * @param encryptedCharacter - the ADFGVX character pair ro be decrypted.
+	 * @param first  - the ADFGVX character giving the row of the square.
+	 * @param second - the ADFGVX character giving the column of the square.
 	 * @return - the decrypted character.
-	 * @throws IllegalArgumentException - if the encryptedCharacter is invalid or
-	 *                                  cannot be found.
+	 * @throws IllegalArgumentException - if either character is not in ADFGVX.
 	 */
-	private char decryptedADFGVXCharacter(String encryptedCharacter) {
-		// Check if the character pair is valid.
-		if (encryptedCharacter == null || encryptedCharacter.length() != 2) {
-			throw new IllegalArgumentException("Invalid ADFGVX character pair");
-		}
-
+	private char decryptedADFGVXCharacter(char first, char second) {
 		int rowIndex = -1;
 		int columnIndex = -1;
 		// Identify the row index based on the first character.
 		for (int i = 0; i < ADFGVX_ARRAY.length; i++) {
-			if (ADFGVX_ARRAY[i] == encryptedCharacter.charAt(0)) {
+			if (ADFGVX_ARRAY[i] == first) {
 				rowIndex = i;
 				break;
 			}
 		}
 		// Identify the row index based on the second character.
 		for (int i = 0; i < ADFGVX_ARRAY.length; i++) {
-			if (ADFGVX_ARRAY[i] == encryptedCharacter.charAt(1)) {
+			if (ADFGVX_ARRAY[i] == second) {
 				columnIndex = i;
 				break;
 			}
@@ -0,0 +1,170 @@
+package ie.atu.sw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes each distinct input content of a job only once. Files with the same
+ * content give the same output with the same key, so the first such file is
+ * processed and the rest are hard links to its output. Only files that share
+ * their size with another file can be duplicates, so only those are hashed;
+ * a file with a size of its own is processed straight away without being read
+ * an extra time.
+ */
+public class Deduplicator {
+	private static final int BUFFER_BYTES = 1024 * 1024;
+
+	private Set<Long> sharedSizes = new HashSet<>();
+	private Map<String, CompletableFuture<Original>> originals = new ConcurrentHashMap<>();
+	private AtomicLong duplicates = new AtomicLong();
+	private AtomicLong inputBytesSkipped = new AtomicLong();
+	private AtomicLong outputBytesLinked = new AtomicLong();
+
+	/*
+	 * The output of the first file with some content: the file it was written to,
+	 * and the name it gets once it is committed (the same unless group commit is
+	 * used).
+	 */
+	private record Original(File written, File outputFile) {
+	}
+
+	/**
+	 * Constructor - a new deduplicator for the input files of one job.
+	 *
+	 * @param inputFiles - all the input files of the job.
+	 */
+	public Deduplicator(File[] inputFiles) {
+		Map<Long, Integer> filesOfSize = new HashMap<>();
+		for (File inputFile : inputFiles) {
+			filesOfSize.merge(inputFile.length(), 1, Integer::sum);
+		}
+		filesOfSize.forEach((size, count) -> {
+			if (count > 1) {
+				sharedSizes.add(size);
+			}
+		});
+	}
+
+	/**
+	 * Processes a file, unless a file with the same content has already been
+	 * processed, in which case the output is linked to that file's output. If that
+	 * file is still being processed, this waits for it.
+	 *
+	 * @param task       - the work to do for the file.
+	 * @param inputFile  - the file to process.
+	 * @param written    - where the output is written.
+	 * @param outputFile - the final name of the output.
+	 * @throws Exception - if the file cannot be processed or linked.
+	 */
+	public void process(BatchJob.FileTask task, File inputFile, File written, File outputFile) throws Exception {
+		if (!sharedSizes.contains(inputFile.length())) {
+			task.process(inputFile, written);
+			return;
+		}
+
+		String hash = hashOf(inputFile);
+		CompletableFuture<Original> mine = new CompletableFuture<>();
+		CompletableFuture<Original> first = originals.putIfAbsent(hash, mine);
+		Metrics.get().dedupLookup(first != null);
+		if (first == null) {
+			try {
+				task.process(inputFile, written);
+			} catch (Exception e) {
+				// Let a later copy of this content try again.
+				originals.remove(hash, mine);
+				mine.completeExceptionally(e);
+				throw e;
+			}
+			mine.complete(new Original(written, outputFile));
+			return;
+		}
+
+		Original original;
+		try {
+			original = first.join();
+		} catch (CompletionException e) {
+			task.process(inputFile, written);
+			return;
+		}
+		long linkedBytes = link(original, written);
+		duplicates.incrementAndGet();
+		inputBytesSkipped.addAndGet(inputFile.length());
+		outputBytesLinked.addAndGet(linkedBytes);
+	}
+
+	/**
+	 * @return - a line with the number of duplicates and the bytes saved.
+	 */
+	public String report() {
+		return "Deduplicated " + duplicates + " file(s): " + inputBytesSkipped + " bytes not processed, "
+				+ outputBytesLinked + " bytes not written.";
+	}
+
+	/*
+	 * Links the output of a duplicate to the original's output, and its checksum
+	 * sidecar if there is one. Returns the bytes that did not have to be written,
+	 * which is 0 if the file system cannot link and the output had to be copied.
+	 */
+	private long link(Original original, File written) throws IOException {
+		long linkedBytes = 0;
+		for (boolean sidecar : new boolean[] { false, true }) {
+			File from = sidecar ? Integrity.sidecarFor(original.written()) : original.written();
+			File committed = sidecar ? Integrity.sidecarFor(original.outputFile()) : original.outputFile();
+			File to = sidecar ? Integrity.sidecarFor(written) : written;
+			if (!from.exists() && !committed.exists()) {
+				continue;
+			}
+
+			try {
+				try {
+					Files.createLink(to.toPath(), from.toPath());
+				} catch (NoSuchFileException e) {
+					// The original was committed under its final name in the meantime.
+					Files.createLink(to.toPath(), committed.toPath());
+				}
+				linkedBytes += to.length();
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				Files.copy((from.exists() ? from : committed).toPath(), to.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		return linkedBytes;
+	}
+
+	/*
+	 * The SHA-256 hash of a file's bytes.
+	 */
+	private static String hashOf(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			byte[] buffer = new byte[BUFFER_BYTES];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, count);
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+}
@@ -0,0 +1,437 @@
+package ie.atu.sw;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks that every fast engine gives exactly the same output as the original
+ * String and char matrix code, {@link Encryption#encryptText} and
+ * {@link Decryption#decryptMatrixText}, which is the reference. Each engine is
+ * run on random keys of every length from 4 to 15 and on random texts, with
+ * the lengths around the key length that decide how much the original format
+ * clips, and its output is compared with the reference output for the same
+ * case.
+ *
+ * When a case fails, it is shrunk before it is reported: parts of the text,
+ * characters of the key and the engine's setting are removed for as long as the
+ * case still fails, so the report shows a minimal case that can be reproduced.
+ */
+public class DifferentialCheck {
+	private static final String LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	private static final String KEY_CHARACTERS = LETTERS + "0123456789";
+	private static final int MAX_RANDOM_LENGTH = 3000;
+	private static final AdfgvxProvider PROVIDER = new AdfgvxProvider();
+
+	private long seed;
+	private int cases;
+	private File scratchDirectory;
+
+	/*
+	 * One input: a key, a plaintext, and a number an engine can use for its own
+	 * setting, e.g. its block size.
+	 */
+	private record Case(String key, String text, int setting) {
+		@Override
+		public String toString() {
+			return "key=" + key + " text=\"" + text + "\" (" + text.length() + " letters) setting=" + setting;
+		}
+	}
+
+	/*
+	 * Runs one engine on a case and compares it with the reference.
+	 */
+	private interface Engine {
+		/**
+		 * @return - what differs, or null if the engine matches the reference.
+		 */
+		String compare(Case c) throws Exception;
+	}
+
+	/**
+	 * Constructor - a check with a fixed seed, so a failure can be run again.
+	 *
+	 * @param seed  - the seed for the random keys and texts.
+	 * @param cases - the number of random cases per engine.
+	 */
+	public DifferentialCheck(long seed, int cases) {
+		this.seed = seed;
+		this.cases = cases;
+	}
+
+	/**
+	 * Compares every engine with the reference and prints one PASS or FAIL line
+	 * per engine, with a shrunk case for each failure.
+	 *
+	 * @param out - receives the results.
+	 * @return - the number of engines that failed.
+	 * @throws IOException - if the scratch files cannot be written.
+	 */
+	public int run(PrintStream out) throws IOException {
+		scratchDirectory = Files.createTempDirectory("adfgvx-selfcheck").toFile();
+		int failures = 0;
+		try {
+			failures += check(out, "KeyPlan.encryptMatrix", false, this::keyPlanEncrypt);
+			failures += check(out, "KeyPlan.decryptMatrix", false, this::keyPlanDecrypt);
+			failures += check(out, "AdfgvxCipher", true, this::library);
+			failures += check(out, "LargeFileEngine", true, this::largeFileEngine);
+			failures += check(out, "BlockFormat round trip", true, this::blockFormat);
+			failures += check(out, "RecordFormat round trip", true, this::recordFormat);
+			failures += check(out, "decryptRange", true, this::decryptRange);
+			failures += check(out, "decryptRange block format", true, this::decryptBlockRange);
+			failures += check(out, "JCA provider", true, this::provider);
+		} finally {
+			File[] files = scratchDirectory.listFiles();
+			for (File file : files == null ? new File[0] : files) {
+				file.delete();
+			}
+			scratchDirectory.delete();
+		}
+		return failures;
+	}
+
+	/*
+	 * Runs an engine on the cases and reports the first failure, shrunk.
+	 */
+	private int check(PrintStream out, String name, boolean lettersOnly, Engine engine) {
+		Random random = new Random(seed);
+		List<Case> inputs = cases(random, lettersOnly);
+		for (Case c : inputs) {
+			if (differs(engine, c) != null) {
+				Case minimal = shrink(engine, c);
+				out.println("FAIL engine " + name + ": " + differs(engine, minimal));
+				out.println("     smallest failing case: " + minimal);
+				return 1;
+			}
+		}
+		out.println("PASS engine " + name + ": " + inputs.size() + " cases match the reference (seed " + seed + ")");
+		return 0;
+	}
+
+	/*
+	 * The cases for one engine: for every key length, the text lengths where
+	 * the encoded text just fits or just overflows whole rows, then random keys
+	 * and texts.
+	 */
+	private List<Case> cases(Random random, boolean lettersOnly) {
+		String alphabet = lettersOnly ? LETTERS : KEY_CHARACTERS;
+		List<Case> inputs = new ArrayList<>();
+		for (int keyLength = 4; keyLength <= 15; keyLength++) {
+			for (int length : new int[] { 0, 1, 2, keyLength / 2, keyLength - 1, keyLength, keyLength + 1,
+					2 * keyLength - 1, 2 * keyLength, keyLength * keyLength + 1 }) {
+				inputs.add(new Case(randomKey(random, keyLength), randomText(random, alphabet, length),
+						random.nextInt(Integer.MAX_VALUE)));
+			}
+		}
+		for (int i = 0; i < cases; i++) {
+			int keyLength = 4 + i % 12;
+			int length = random.nextInt(4) == 0 ? random.nextInt(MAX_RANDOM_LENGTH) : random.nextInt(60);
+			inputs.add(new Case(randomKey(random, keyLength), randomText(random, alphabet, length),
+					random.nextInt(Integer.MAX_VALUE)));
+		}
+		return inputs;
+	}
+
+	/*
+	 * What differs for a case, or null if it matches. An exception is a
+	 * difference too.
+	 */
+	private static String differs(Engine engine, Case c) {
+		try {
+			return engine.compare(c);
+		} catch (Exception e) {
+			return "threw " + e;
+		}
+	}
+
+	/*
+	 * Makes a failing case as small as it can while it still fails: first whole
+	 * pieces of the text are cut out, from halves down to single letters, then
+	 * key characters are dropped down to 4, then the setting is lowered.
+	 */
+	private static Case shrink(Engine engine, Case failing) {
+		boolean smaller = true;
+		while (smaller) {
+			smaller = false;
+			String text = failing.text();
+			for (int piece = Math.max(1, text.length() / 2); piece >= 1 && !smaller; piece /= 2) {
+				for (int start = 0; start + piece <= text.length() && !smaller; start += piece) {
+					Case c = new Case(failing.key(), text.substring(0, start) + text.substring(start + piece),
+							failing.setting());
+					if (differs(engine, c) != null) {
+						failing = c;
+						smaller = true;
+					}
+				}
+			}
+			for (int i = 0; i < failing.key().length() && failing.key().length() > 4 && !smaller; i++) {
+				String key = failing.key();
+				Case c = new Case(key.substring(0, i) + key.substring(i + 1), failing.text(), failing.setting());
+				if (differs(engine, c) != null) {
+					failing = c;
+					smaller = true;
+				}
+			}
+			for (int setting : new int[] { 0, failing.setting() / 2 }) {
+				if (!smaller && setting < failing.setting()) {
+					Case c = new Case(failing.key(), failing.text(), setting);
+					if (differs(engine, c) != null) {
+						failing = c;
+						smaller = true;
+					}
+				}
+			}
+		}
+		return failing;
+	}
+
+	private String keyPlanEncrypt(Case c) {
+		String expected = referenceEncrypt(c);
+		String actual = ascii(plan(c).encryptMatrix(bytes(c.text()), 0, c.text().length()));
+		return compare("ciphertext", expected, actual);
+	}
+
+	private String keyPlanDecrypt(Case c) {
+		String ciphertext = referenceEncrypt(c);
+		String expected = referenceDecrypt(c, ciphertext);
+		String actual = ascii(plan(c).decryptMatrix(bytes(ciphertext), 0, ciphertext.length()));
+		return compare("plaintext", expected, actual);
+	}
+
+	private String library(Case c) {
+		AdfgvxCipher cipher = new AdfgvxCipher(c.key());
+		String ciphertext = referenceEncrypt(c);
+		String difference = compare("ciphertext", ciphertext, cipher.encrypt(c.text()));
+		return difference != null ? difference
+				: compare("plaintext", referenceDecrypt(c, ciphertext), cipher.decrypt(ciphertext));
+	}
+
+	/*
+	 * The streaming engine with a chunk of only a few rows, so the chunk
+	 * boundaries fall inside the text.
+	 */
+	private String largeFileEngine(Case c) throws IOException {
+		LargeFileEngine engine = new LargeFileEngine(plan(c), 2 + 2 * (c.setting() % 4));
+		File plaintextFile = scratchFile("plain", c.text());
+		File ciphertextFile = new File(scratchDirectory, "cipher.txt");
+		File decryptedFile = new File(scratchDirectory, "decrypted.txt");
+
+		String ciphertext = referenceEncrypt(c);
+		engine.encrypt(plaintextFile, ciphertextFile);
+		String difference = compare("ciphertext", ciphertext, Files.readString(ciphertextFile.toPath()));
+		if (difference != null) {
+			return difference;
+		}
+		engine.decrypt(ciphertextFile, decryptedFile);
+		return compare("plaintext", referenceDecrypt(c, ciphertext), Files.readString(decryptedFile.toPath()));
+	}
+
+	/*
+	 * The block format keeps every letter, so it is checked against the text
+	 * itself rather than the clipped reference.
+	 */
+	private String blockFormat(Case c) throws IOException {
+		int blockSize = 1 + c.setting() % (c.text().length() + 1);
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		BlockFormat.encrypt(new ByteArrayInputStream(bytes(c.text())), encrypted, plan(c), blockSize, true);
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		BlockFormat.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, plan(c));
+		return compare("plaintext (block size " + blockSize + ")", c.text(), ascii(decrypted.toByteArray()));
+	}
+
+	/*
+	 * The record format keeps every letter of every line. The text is split into
+	 * lines of a length picked from the setting; the first half is encrypted and
+	 * the rest appended. Then the whole file, and a run of records picked from
+	 * the setting through the index, are decrypted.
+	 */
+	private String recordFormat(Case c) throws IOException {
+		int lineLength = 1 + c.setting() % (c.text().length() + 1);
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < c.text().length(); i += lineLength) {
+			lines.add(c.text().substring(i, Math.min(c.text().length(), i + lineLength)));
+		}
+		int written = lines.size() - lines.size() / 2;
+		File ciphertextFile = new File(scratchDirectory, "records.txt");
+		Files.deleteIfExists(RecordFormat.indexFor(ciphertextFile).toPath());
+		try (OutputStream out = Files.newOutputStream(ciphertextFile.toPath())) {
+			RecordFormat.encrypt(new ByteArrayInputStream(bytes(lines(lines.subList(0, written)))), out, plan(c));
+		}
+		RecordFormat.append(ciphertextFile,
+				new ByteArrayInputStream(bytes(lines(lines.subList(written, lines.size())))), plan(c));
+
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		try (InputStream in = Files.newInputStream(ciphertextFile.toPath())) {
+			RecordFormat.decrypt(in, decrypted, plan(c));
+		}
+		String difference = compare("records (lines of " + lineLength + ")", lines(lines),
+				ascii(decrypted.toByteArray()));
+		if (difference != null) {
+			return difference;
+		}
+		int first = (c.setting() / 7) % (lines.size() + 1);
+		int count = (c.setting() / 11) % (lines.size() + 2);
+		return compare("records " + first + " to " + (first + count - 1),
+				lines(lines.subList(first, Math.min(lines.size(), first + count))),
+				lines(RecordFormat.readRecords(ciphertextFile, plan(c), first, count)));
+	}
+
+	/*
+	 * Each line followed by a line break.
+	 */
+	private static String lines(List<String> lines) {
+		StringBuilder text = new StringBuilder();
+		lines.forEach(line -> text.append(line).append('\n'));
+		return text.toString();
+	}
+
+	/*
+	 * The Cipher from the provider, fed in pieces of a size picked from the
+	 * setting, must write exactly the block format and read it back.
+	 */
+	private String provider(Case c) throws Exception {
+		int blockSize = 1 + c.setting() % (c.text().length() + 1);
+		int piece = 1 + (c.setting() / 3) % 50;
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		BlockFormat.encrypt(new ByteArrayInputStream(bytes(c.text())), expected, plan(c), blockSize, true);
+
+		Cipher cipher = Cipher.getInstance("ADFGVX", PROVIDER);
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(bytes(c.key()), "ADFGVX"),
+				new AdfgvxCipherSpi.BlockParameters(blockSize, true));
+		String difference = compare("ciphertext (block size " + blockSize + ", pieces of " + piece + ")",
+				ascii(expected.toByteArray()), ascii(inPieces(cipher, bytes(c.text()), piece)));
+		if (difference != null) {
+			return difference;
+		}
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(bytes(c.key()), "ADFGVX"));
+		return compare("plaintext (pieces of " + piece + ")", c.text(),
+				ascii(inPieces(cipher, expected.toByteArray(), piece)));
+	}
+
+	/*
+	 * Runs a whole message through a cipher a few bytes at a time.
+	 */
+	private static byte[] inPieces(Cipher cipher, byte[] input, int piece) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (int offset = 0; offset < input.length; offset += piece) {
+			byte[] part = cipher.update(input, offset, Math.min(piece, input.length - offset));
+			if (part != null) {
+				output.write(part);
+			}
+		}
+		output.write(cipher.doFinal());
+		return output.toByteArray();
+	}
+
+	private String decryptRange(Case c) throws IOException {
+		String ciphertext = referenceEncrypt(c);
+		String plaintext = referenceDecrypt(c, ciphertext);
+		File ciphertextFile = scratchFile("cipher", ciphertext);
+		return compareRange(c, plaintext, ciphertextFile);
+	}
+
+	private String decryptBlockRange(Case c) throws IOException {
+		File ciphertextFile = new File(scratchDirectory, "blocks.txt");
+		try (OutputStream out = Files.newOutputStream(ciphertextFile.toPath())) {
+			BlockFormat.encrypt(new ByteArrayInputStream(bytes(c.text())), out, plan(c),
+					1 + c.setting() % (c.text().length() + 1), false);
+		}
+		return compareRange(c, c.text(), ciphertextFile);
+	}
+
+	/*
+	 * Decrypts a range picked from the setting and compares it with the same
+	 * range of the whole plaintext.
+	 */
+	private String compareRange(Case c, String plaintext, File ciphertextFile) throws IOException {
+		int offset = c.setting() % (plaintext.length() + 1);
+		int length = (c.setting() / 7) % (plaintext.length() + 2);
+		String expected = plaintext.substring(offset, Math.min(plaintext.length(), offset + length));
+		String actual = decryption(c).decryptRange(ciphertextFile, offset, length);
+		return compare("range at " + offset + " of length " + length, expected, actual);
+	}
+
+	private String referenceEncrypt(Case c) {
+		Encryption encryption = new Encryption(new InputDirectory(), new OutputDirectory(), key(c));
+		return encryption.encryptText(c.text());
+	}
+
+	private String referenceDecrypt(Case c, String ciphertext) {
+		return decryption(c).decryptMatrixText(ciphertext);
+	}
+
+	private static Decryption decryption(Case c) {
+		return new Decryption(new InputDirectory(), new OutputDirectory(), key(c));
+	}
+
+	private static Key key(Case c) {
+		Key key = new Key();
+		key.setKey(c.key());
+		return key;
+	}
+
+	private static KeyPlan plan(Case c) {
+		return new KeyPlan(c.key().toCharArray());
+	}
+
+	/*
+	 * Describes the first difference between the expected and actual text, or
+	 * returns null if they are the same.
+	 */
+	private static String compare(String what, String expected, String actual) {
+		if (expected.equals(actual)) {
+			return null;
+		}
+		int at = 0;
+		while (at < expected.length() && at < actual.length() && expected.charAt(at) == actual.charAt(at)) {
+			at++;
+		}
+		return what + " differs at " + at + ": expected \"" + expected + "\" but got \"" + actual + "\"";
+	}
+
+	private File scratchFile(String name, String content) throws IOException {
+		File file = new File(scratchDirectory, name + ".txt");
+		Files.writeString(file.toPath(), content);
+		return file;
+	}
+
+	private static String randomKey(Random random, int length) {
+		StringBuilder key = new StringBuilder(length);
+		while (key.length() < length) {
+			char character = KEY_CHARACTERS.charAt(random.nextInt(KEY_CHARACTERS.length()));
+			if (key.indexOf(String.valueOf(character)) < 0) {
+				key.append(character);
+			}
+		}
+		return key.toString();
+	}
+
+	private static String randomText(Random random, String alphabet, int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return text.toString();
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static String ascii(byte[] bytes) {
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+}
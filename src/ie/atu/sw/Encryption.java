@@ -1,9 +1,23 @@
 package ie.atu.sw;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * Encryption class that contains methods to encrypt plaintext using a
@@ -12,12 +26,30 @@ import java.util.Arrays;
  * results to an output directory.
  */
 public class Encryption {
-	private InputDirectory inputDirectory; 		// Directory with files to encrypt.
-	private OutputDirectory outputDirectory; 	// Location for encrypted files.
-	private Key key; 							// Encryption key.
+	private Supplier<String> inputDirectory; 	// Directory with files to encrypt.
+	private Supplier<String> outputDirectory; 	// Location for encrypted files.
+	private Supplier<char[]> key; 				// Encryption key.
 	private Parser parser; 						// For file parsing.
-
-	private static final char[][] POLYBIUS_SQUARE = { 
+	private char[] compiledKey; 				// Key the plan was compiled for.
+	private KeyPlan compiledPlan;
+	private int blockSize; 						// Plaintext characters per block, 0 for a single matrix.
+	private boolean checksums; 					// Write CRC32C checksums with each file.
+	private boolean records; 					// Encrypt each line as its own record.
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private MemoryGovernor memoryGovernor = new MemoryGovernor(MemoryGovernor.defaultBudget());
+	private BatchJob.Schedule schedule = BatchJob.Schedule.LARGEST_FIRST;
+	private long makespanMillis;
+	private int syncGroup;
+	private boolean deduplicate;
+	private boolean sharded;
+	private long leaseMillis;
+	private List<String> reports = new ArrayList<>();
+	private Keyring keyring; 						// Gives each file its key, or null.
+	private RunHistory history; 					// Where each directory run is recorded, or null.
+	private Set<String> engines = ConcurrentHashMap.newKeySet();	// Engines used by the current run.
+	private String regressionWarning;
+
+	static final char[][] POLYBIUS_SQUARE = { 
 			{ 'P', 'H', '0', 'Q', 'G', '6' },
 			{ '4', 'M', 'E', 'A', '1', 'Y' }, 
 			{ 'L', '2', 'N', 'O', 'F', 'D' }, 
@@ -25,7 +57,7 @@ public class Encryption {
 			{ 'S', '5', 'Z', 'W', '7', 'B' }, 
 			{ 'J', '9', 'U', 'T', 'I', '8' } };
 
-	private static final char[] ADFGVX_ARRAY = { 'A', 'D', 'F', 'G', 'V', 'X' };
+	static final char[] ADFGVX_ARRAY = { 'A', 'D', 'F', 'G', 'V', 'X' };
 
 	/**
 	 * Constructor - a new Encryption instance with specified directories and key.
@@ -36,6 +68,31 @@ public class Encryption {
 	 * @param key             - for the encrypting files.
 	 */
 	public Encryption(InputDirectory inputDirectory, OutputDirectory outputDirectory, Key key) {
+		this(inputDirectory::getInputDirectory, outputDirectory::getOutputDirectory, key::getKey);
+	}
+
+	/**
+	 * Constructor - a new Encryption instance for fixed directories and an already
+	 * compiled key, which never reads from the console, for the library API.
+	 * 
+	 * @param inputDirectory  - source of files to be encrypted.
+	 * @param outputDirectory - location for storing encryted files.
+	 * @param plan            - the compiled key for the files.
+	 */
+	Encryption(File inputDirectory, File outputDirectory, KeyPlan plan) {
+		this(inputDirectory::getPath, outputDirectory::getPath, null);
+		char[] keyCharacters = plan.key();
+		this.key = () -> keyCharacters;
+		// The plan is already compiled, so compiledPlan() returns it as it is.
+		this.compiledKey = keyCharacters;
+		this.compiledPlan = plan;
+	}
+
+	/*
+	 * Reads the directories and the key through the given suppliers, so the menu's
+	 * changes to them are seen by the next run.
+	 */
+	private Encryption(Supplier<String> inputDirectory, Supplier<String> outputDirectory, Supplier<char[]> key) {
 		this.inputDirectory = inputDirectory;
 		this.outputDirectory = outputDirectory;
 		this.key = key;
@@ -47,10 +104,10 @@ public class Encryption {
 	 * encrypts the contents of that directory and writes the encrypted text to the
 	 * output folder.
 	 * 
-	 * @return - the encrypted version of the plaintext.
+	 * @param resume - true to skip the files an interrupted encryption into the
+	 *               output folder already finished.
 	 */
-	public void handleEncryption() {
-		String transposedText;
+	public void handleEncryption(boolean resume) {
 		if (!directoriesAndKeyAreSet()) {
 			return;
 		}
@@ -59,45 +116,412 @@ public class Encryption {
 			System.out.println("Please be patient! ");
 			System.out.println("Encrypting file(s)...");
 			System.out.println("");
-			// Parse files in the directory to extract plaintext.
-			String[] plaintexts = parser.parseFilesInDirectory(inputDirectory.getInputDirectory());
-
-			int fileNumber = 0;
-			for (String plaintext : plaintexts) {
-				String encryptedText = encryptPlaintext(plaintext);
-
-				// Determines the appropriate size of the matrix based on the encrypted text and
-				// key.
-				char[][] emptyMatrix = setMatrixSize(encryptedText, key.getKey());
-
-				// Fill this matrix with the key at the top row.
-				char[][] matrixWithKey = fillMatrixWithKey(key.getKey(), emptyMatrix);
+			encryptDirectory(resume);
+			System.out.println("Your Encryption is Complete!");
+			if (regressionWarning != null) {
+				System.out.println(regressionWarning);
+			}
+		} catch (Exception e) {
+			System.out.println("An error occurred while encrypting: " + e.getMessage());
+		}
+	}
 
-				// Fill in the rest of the matrix with the encrypted text.
-				char[][] filledMatrix = fillMatrixWithText(encryptedText, matrixWithKey);
+	/**
+	 * Encrypts every text file in the input directory into the output directory
+	 * as encrypted0.txt, encrypted1.txt... Files are numbered in name order.
+	 * 
+	 * @param resume - true to skip the files an interrupted run already finished.
+	 * @return - the number of files encrypted.
+	 * @throws IOException - if a file cannot be read or written.
+	 */
+	public int encryptDirectory(boolean resume) throws IOException {
+		if (records && (blockSize > 0 || checksums)) {
+			throw new IllegalArgumentException("The record format cannot be used with a block size or checksums");
+		}
+		if (ZipJob.isZip(inputDirectory.get()) || ZipJob.isZip(outputDirectory.get())) {
+			return encryptArchive(resume);
+		}
+		BatchJob job = new BatchJob(inputDirectory.get(), outputDirectory.get(),
+				"encrypted");
+		job.setThreads(threads);
+		job.setSchedule(schedule);
+		job.setSyncGroup(syncGroup);
+		job.setDeduplicate(deduplicate);
+		job.setSharded(sharded);
+		job.setLeaseMillis(leaseMillis);
+		if (leaseMillis > 0) {
+			job.setJobFingerprint(WorkLeases.fingerprint("encrypt key=" + String.valueOf(key.get()) + " block="
+					+ blockSize + " checksums=" + checksums + " records=" + records));
+		}
+		job.setKeyring(keyring);
+		Metrics.get().useMemoryGovernor(memoryGovernor);
+		engines.clear();
+		int files;
+		try {
+			files = job.run(this::encryptFile, resume);
+		} finally {
+			makespanMillis = job.getMakespanMillis();
+			reports = job.getReports();
+		}
+		recordRun(files, job.getBytesProcessed());
+		return files;
+	}
 
-				// Order the sortedKey alphanumerically.
-				char[] sortedKey = orderKeyAlphanumerically(key.getKey());
+	/*
+	 * Encrypts from or into a ZIP archive, without extracting it, see ZipJob. The
+	 * checksums of the original format are written to files beside each output,
+	 * so in an archive they need the block format, which keeps them inside.
+	 */
+	private int encryptArchive(boolean resume) throws IOException {
+		ZipJob.checkOptions(resume, syncGroup, deduplicate, sharded, leaseMillis);
+		if (keyring != null) {
+			throw new IllegalArgumentException("A keyring needs directories, not ZIP archives");
+		}
+		if (checksums && blockSize == 0) {
+			throw new IllegalArgumentException("Checksums with a ZIP archive need the block format (--block-size)");
+		}
+		ZipJob job = new ZipJob(inputDirectory.get(), outputDirectory.get(),
+				"encrypted");
+		job.setThreads(threads);
+		job.setMemoryGovernor(memoryGovernor);
+		Metrics.get().useMemoryGovernor(memoryGovernor);
+		engines.clear();
+		int files;
+		try {
+			files = job.run(this::encryptEntry);
+		} finally {
+			makespanMillis = job.getMakespanMillis();
+			reports = job.getReports();
+		}
+		recordRun(files, job.getBytesProcessed());
+		return files;
+	}
 
-				// Get the order in which columns should be read based on the key.
-				int[] orderOfKeyIndices = determineColumnOrder(key.getKey(), sortedKey);
+	/*
+	 * Encrypts one entry of an archive into the record format or the block format
+	 * if one is set, otherwise into one matrix, the same as a small file.
+	 */
+	private void encryptEntry(InputStream in, OutputStream out) throws IOException {
+		if (records) {
+			engines.add("records");
+			RecordFormat.encrypt(in, out, compiledPlan());
+			return;
+		}
+		if (blockSize > 0) {
+			engines.add("block");
+			BlockFormat.encrypt(in, out, compiledPlan(), blockSize, checksums);
+			return;
+		}
+		engines.add("matrix");
+		long lap = System.nanoTime();
+		byte[] plaintext = parser.parseLetters(in);
+		lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+		byte[] ciphertext = compiledPlan().encryptMatrix(plaintext, 0, plaintext.length);
+		FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+		out.write(ciphertext);
+	}
 
-				// Perform the columar Transposition to get the final encrypted text.
-				transposedText = performColumnarTransposition(filledMatrix, orderOfKeyIndices);
+	/*
+	 * Adds the run to the history, if one is kept, and adds a warning to the
+	 * reports if it was slower than the comparable runs before it. A history that
+	 * cannot be written does not fail the encryption.
+	 */
+	private void recordRun(int files, long bytes) {
+		regressionWarning = null;
+		if (history == null || files == 0) {
+			return;
+		}
+		try {
+			regressionWarning = history.record(new RunHistory.Run(Instant.now(), "encrypt", files,
+					bytes, makespanMillis, Metrics.get().threadsOr(threads),
+					engines.isEmpty() ? "none" : String.join("+", new TreeSet<>(engines))));
+		} catch (IOException e) {
+			reports.add("Could not record the run in the history: " + e.getMessage());
+		}
+		if (regressionWarning != null) {
+			reports.add(regressionWarning);
+		}
+	}
 
-				// Write encrypted text to a file in the output directory.
-				File file = new File(outputDirectory.getOutputDirectory(), "encrypted" + fileNumber + ".txt");
+	/**
+	 * Encrypts a single file. Parses the file to extract the plaintext, encrypts
+	 * it and writes the encrypted text to the output file.
+	 * 
+	 * @param inputFile  - the plaintext file.
+	 * @param outputFile - where the encrypted text is written.
+	 * @throws Exception - if the file cannot be read, encrypted or written.
+	 */
+	public void encryptFile(File inputFile, File outputFile) throws Exception {
+		// Wait for room in the memory budget before starting the file.
+		boolean streaming = records || blockSize > 0 || memoryGovernor.useStreaming(inputFile.length());
+		long reservedMemory = memoryGovernor.acquire(inputFile.length(), streaming);
 
-				try (FileWriter fileWriter = new FileWriter(file);
+		engines.add(records ? "records" : blockSize > 0 ? "block" : streaming ? "streaming" : "matrix");
+		KeyPlan plan = planFor(inputFile);
+		try {
+			if (records) {
+				try (InputStream in = new FileInputStream(inputFile);
+						OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+					RecordFormat.encrypt(in, out, plan);
+				}
+				// An index left from an earlier file of the same name would not match.
+				Files.deleteIfExists(RecordFormat.indexFor(outputFile).toPath());
+			} else if (blockSize > 0) {
+				try (InputStream in = new FileInputStream(inputFile);
+						OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+					BlockFormat.encrypt(in, out, plan, blockSize, checksums);
+				}
+			} else if (streaming) {
+				encryptLargeFile(inputFile, outputFile, plan);
+			} else {
+				long lap = System.nanoTime();
+				String plaintext = parser.parse(inputFile.getPath());
+				lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+				// A keyring's keys are only compiled, so its files take the compiled engine.
+				String transposedText = keyring == null ? encryptText(plaintext)
+						: new String(plan.encryptMatrix(plaintext.getBytes(StandardCharsets.US_ASCII), 0,
+								plaintext.length()), StandardCharsets.US_ASCII);
+				lap = FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+
+				// Write encrypted text to the file in the output directory.
+				try (FileWriter fileWriter = new FileWriter(outputFile);
 						BufferedWriter bufferedWriter = new BufferedWriter(fileWriter)) {
 					bufferedWriter.write(transposedText);
 				}
-				fileNumber++;
+				if (checksums) {
+					Integrity.writeSidecar(outputFile, transposedText, plaintext);
+				}
+				FileLatencies.lap(FileLatencies.Stage.WRITE, lap);
 			}
-			System.out.println("Your Encryption is Complete!");
-		} catch (Exception e) {
-			System.out.println("An error occurred while encrypting: " + e.getMessage());
+		} finally {
+			memoryGovernor.release(reservedMemory);
+		}
+	}
+
+	/**
+	 * Encrypts lines of text and appends them as new records to a file in the
+	 * record format, creating it if it does not exist. The records already in
+	 * the file are not read or rewritten, see {@link RecordFormat}.
+	 * 
+	 * @param encryptedFile - the file in the record format.
+	 * @param plaintext     - the text to append, one record per line.
+	 * @return - the number of records appended.
+	 * @throws IOException - if the file cannot be read or written.
+	 */
+	public long appendRecords(File encryptedFile, InputStream plaintext) throws IOException {
+		return RecordFormat.append(encryptedFile, plaintext, compiledPlan());
+	}
+
+	/**
+	 * Encrypts a file too large to hold in memory, see {@link LargeFileEngine}. The
+	 * output is the same as for a small file. The ciphertext checksum needs one
+	 * extra read of the output, because the columns are not written in order.
+	 * 
+	 * @param inputFile  - the plaintext file.
+	 * @param outputFile - where the encrypted text is written.
+	 * @param plan       - the compiled key for the file.
+	 * @throws IOException - if the file cannot be read or written.
+	 */
+	private void encryptLargeFile(File inputFile, File outputFile, KeyPlan plan) throws IOException {
+		LargeFileEngine engine = new LargeFileEngine(plan);
+		engine.encrypt(inputFile, outputFile);
+		if (checksums) {
+			Integrity.writeSidecar(outputFile, engine.ciphertextLength(), Integrity.crcOfFile(outputFile),
+					engine.plaintextCrc());
+		}
+	}
+
+	/**
+	 * Encrypts parsed plaintext with the current key: encodes it with the Polybius
+	 * square and then performs the columnar transposition.
+	 * 
+	 * @param plaintext - the parsed plaintext (uppercase letters only).
+	 * @return - the final encrypted text.
+	 */
+	public String encryptText(String plaintext) {
+		String encryptedText = encryptPlaintext(plaintext);
+
+		// Determines the appropriate size of the matrix based on the encrypted text and
+		// key.
+		char[][] emptyMatrix = setMatrixSize(encryptedText, key.get());
+
+		// Fill this matrix with the key at the top row.
+		char[][] matrixWithKey = fillMatrixWithKey(key.get(), emptyMatrix);
+
+		// Fill in the rest of the matrix with the encrypted text.
+		char[][] filledMatrix = fillMatrixWithText(encryptedText, matrixWithKey);
+
+		// Get the order in which columns should be read based on the key.
+		int[] orderOfKeyIndices = compiledPlan().readOrder();
+
+		// Perform the columar Transposition to get the final encrypted text.
+		return performColumnarTransposition(filledMatrix, orderOfKeyIndices);
+	}
+
+	/**
+	 * The column order only depends on the key, so the key is compiled once and
+	 * reused for every file until the key changes.
+	 * 
+	 * @return - the compiled plan for the current key.
+	 */
+	public synchronized KeyPlan compiledPlan() {
+		boolean reused = compiledKey == key.get();
+		if (!reused) {
+			compiledPlan = new KeyPlan(key.get());
+			compiledKey = key.get();
+		}
+		Metrics.get().keyCacheLookup(reused);
+		return compiledPlan;
+	}
+
+	/**
+	 * Sets the block size. With a block size of 0, each file is transposed as one
+	 * matrix (the original format). Otherwise files are written in the block
+	 * format, see {@link BlockFormat}.
+	 * 
+	 * @param blockSize - plaintext characters per block, or 0.
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize < 0) {
+			throw new IllegalArgumentException("The block size cannot be negative");
+		}
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Sets if each line of a file is encrypted as its own record, see
+	 * {@link RecordFormat}, instead of the whole file at once.
+	 * 
+	 * @param records - true to write the record format.
+	 */
+	public void setRecords(boolean records) {
+		this.records = records;
+	}
+
+	/**
+	 * Sets if CRC32C checksums of the ciphertext and the plaintext are written with
+	 * each file, so the files can be checked later, see {@link Integrity}.
+	 * 
+	 * @param checksums - true to write checksums.
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Sets how many files are encrypted at the same time.
+	 * 
+	 * @param threads - the number of worker threads.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the governor that keeps the memory used by files encrypted at the same
+	 * time under a budget.
+	 * 
+	 * @param memoryGovernor - the governor to use.
+	 */
+	public void setMemoryGovernor(MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+	}
+
+	/**
+	 * Sets the order the files of a directory are started in.
+	 * 
+	 * @param schedule - the order to use.
+	 */
+	public void setSchedule(BatchJob.Schedule schedule) {
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Writes the files durably, forcing them to disk a group at a time, see
+	 * {@link GroupCommit}.
+	 * 
+	 * @param syncGroup - how many files are forced to disk together, or 0 to not
+	 *                  force them.
+	 */
+	public void setSyncGroup(int syncGroup) {
+		this.syncGroup = syncGroup;
+	}
+
+	/**
+	 * Processes files with the same content only once, linking the others to its
+	 * output, see {@link Deduplicator}.
+	 * 
+	 * @param deduplicate - true to deduplicate.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Writes the output files two directories deep with an index, see
+	 * {@link ShardedLayout}.
+	 * 
+	 * @param sharded - true for the sharded layout.
+	 */
+	public void setSharded(boolean sharded) {
+		this.sharded = sharded;
+	}
+
+	/**
+	 * Shares the directory with other processes encrypting into the same output
+	 * directory, see {@link WorkLeases}.
+	 * 
+	 * @param leaseMillis - how long a claim on a file lasts if the process holding
+	 *                    it dies, or 0 to not share the directory.
+	 */
+	public void setLeaseMillis(long leaseMillis) {
+		this.leaseMillis = leaseMillis;
+	}
+
+	/**
+	 * Records each directory run in a history, so a run slower than comparable
+	 * runs before it is reported.
+	 * 
+	 * @param history - the history to record runs in, or null to not record them.
+	 */
+	public void setHistory(RunHistory history) {
+		this.history = history;
+	}
+
+	/**
+	 * Gives each file of a directory its own key from a keyring, instead of the
+	 * one key, see {@link Keyring}.
+	 * 
+	 * @param keyring - the keyring, or null to use the key for every file.
+	 */
+	public void setKeyring(Keyring keyring) {
+		this.keyring = keyring;
+	}
+
+	/*
+	 * The compiled key for a file of the input directory: its key in the keyring
+	 * if one is set, otherwise the key.
+	 */
+	private KeyPlan planFor(File inputFile) {
+		if (keyring == null) {
+			return compiledPlan();
 		}
+		return keyring.planFor(Keyring.relativePath(new File(inputDirectory.get()), inputFile));
+	}
+
+	/**
+	 * @return - summary lines from the last directory, e.g. how long forcing the
+	 *         files to disk took.
+	 */
+	public List<String> getReports() {
+		return reports;
+	}
+
+	/**
+	 * @return - how long the last directory took to encrypt, in milliseconds.
+	 */
+	public long getMakespanMillis() {
+		return makespanMillis;
 	}
 
 	/**
@@ -109,36 +533,38 @@ public class Encryption {
 	 */
 	private boolean directoriesAndKeyAreSet() {
 
-		if (inputDirectory.getInputDirectory() == null) {
+		if (inputDirectory.get() == null) {
 			System.out.println("Please select an input directory before continuing!");
 		}
-		if (outputDirectory.getOutputDirectory() == null) {
+		if (outputDirectory.get() == null) {
 			System.out.println("Please select an output directory before continuing!");
 		}
-		if (key.getKey() == null) {
+		if (key.get() == null) {
 			System.out.println("Please select a key before continuing!");
 		}
-		return inputDirectory.getInputDirectory() != null && outputDirectory.getOutputDirectory() != null
-				&& key.getKey() != null;
+		return inputDirectory.get() != null && outputDirectory.get() != null
+				&& key.get() != null;
 	}
 
 	/**
 	 * A single character is encoded using the ADFGVX cipher. The method iterates
 	 * through the ADFGVX array and the Polybius square to find the corresponding
 	 * encoded character pair. If the character cannot be found in the Polybius
-	 * square, an exception is thrown.
+	 * square, an exception is thrown. The pair is appended straight to the
+	 * encrypted text, so no String is created for each character.
 	 * 
-	 * @param character - takes in a character to be encoded
-	 * @return - returns the encoded character as a String formed by two character
-	 *         pairs in the ADFGVX array.
+	 * @param character     - takes in a character to be encoded
+	 * @param encryptedText - receives the two characters of the pair in the ADFGVX
+	 *                      array.
 	 * @throws IllegalArgumentException - If character is not found within the
 	 *                                  Polybius square
 	 */
-	private String encodeCharacters(char character) {
+	private void encodeCharacters(char character, StringBuilder encryptedText) {
 		for (int row = 0; row < ADFGVX_ARRAY.length; row++) {
 			for (int column = 0; column < ADFGVX_ARRAY.length; column++) {
 				if (POLYBIUS_SQUARE[row][column] == character) {
-					return Character.toString(ADFGVX_ARRAY[row]) + ADFGVX_ARRAY[column];
+					encryptedText.append(ADFGVX_ARRAY[row]).append(ADFGVX_ARRAY[column]);
+					return;
 				}
 			}
 		}
@@ -154,11 +580,10 @@ public class Encryption {
 	 * @return the encrypted version of the plaintext.
 	 */
 	private String encryptPlaintext(String plaintext) {
-		StringBuilder encryptedText = new StringBuilder();
+		StringBuilder encryptedText = new StringBuilder(2 * plaintext.length());
 
 		for (int i = 0; i < plaintext.length(); i++) {
-			String encodedCharacter = encodeCharacters(plaintext.charAt(i));
-			encryptedText.append(encodedCharacter);
+			encodeCharacters(plaintext.charAt(i), encryptedText);
 		}
 		return encryptedText.toString();
 	}
@@ -225,47 +650,6 @@ public class Encryption {
 		return matrixWithKey;
 	}
 
-	/**
-	 * Makes a copy of the original key and sorts it alphanumerically - i.e. numbers
-	 * first followed by letters. This does NOT alter the original key but instead
-	 * creates and returns a sorted version.
-	 * 
-	 * @param key - The key used to be sorted alphanumerically.
-	 * @return - new char array of the alphanumeric sorted copy of the key.
-	 */
-	private char[] orderKeyAlphanumerically(char[] key) {
-		char[] copiedKey = Arrays.copyOf(key, key.length);
-
-		Arrays.sort(copiedKey);
-		char[] sortedKey = copiedKey;
-
-		return sortedKey;
-	}
-
-	/**
-	 * Determines the columns order based on the alphanumeric sorting of the sorted
-	 * key.
-	 * 
-	 * @param key - encryption key - order will be used to determine the column
-	 *            order.
-	 * @return - an array of each index representing which order the columns should
-	 *         be read.
-	 */
-	private int[] determineColumnOrder(char[] originalKey, char[] sortedKey) {
-
-		int[] order = new int[originalKey.length];
-
-		for (int i = 0; i < originalKey.length; i++) {
-			for (int j = 0; j < sortedKey.length; j++) {
-				if (originalKey[i] == sortedKey[j] && order[j] == 0) {
-					order[j] = i;
-					break;
-				}
-			}
-		}
-		return order;
-	}
-
 	/**
 	 * Based on the sorted order of the key, characters from the matrix are removed
 	 * in a specific sequence (performing a columnar transposition). This method
@@ -278,7 +662,7 @@ public class Encryption {
 	 *         determined by the key.
 	 */
 	private String performColumnarTransposition(char[][] matrix, int[] orderOfKeyIndices) {
-		StringBuilder transposedText = new StringBuilder();
+		StringBuilder transposedText = new StringBuilder((matrix.length - 1) * orderOfKeyIndices.length);
 
 		for (int index : orderOfKeyIndices) {
 			for (int row = 1; row < matrix.length; row++) {
@@ -0,0 +1,142 @@
+package ie.atu.sw;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Records how long each file of a job took, split into reading, the cipher and
+ * writing, so the report can show the slow tail and which stage causes it, not
+ * just the average. The times of each stage go in a {@link LatencyHistogram},
+ * and the slowest few files are kept by name, so the memory used stays the same
+ * however many files there are.
+ *
+ * The engines add the time of each stage to the current thread with
+ * {@link #lap}; the job starts a file with {@link #startFile} and records it
+ * with {@link #record} on the same thread. Where an engine reads, works and
+ * writes in one pass, e.g. the streaming engine writing its columns as it fills
+ * them, that time is counted as cipher time.
+ */
+public class FileLatencies {
+	static final int SLOWEST_FILES = 5;
+
+	// Nanoseconds spent in each stage by the file the current thread is working on.
+	private static final ThreadLocal<long[]> STAGE_NANOS = ThreadLocal
+			.withInitial(() -> new long[Stage.values().length]);
+
+	private LatencyHistogram total = new LatencyHistogram();
+	private LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+	private PriorityQueue<SlowFile> slowest = new PriorityQueue<>(Comparator.comparingLong(SlowFile::nanos));
+
+	/**
+	 * The parts a file's time is split into.
+	 */
+	public enum Stage {
+		READ, CIPHER, WRITE
+	}
+
+	/*
+	 * One of the slowest files: its name, its time and the time of each stage.
+	 */
+	private record SlowFile(String name, long nanos, long[] stageNanos) {
+	}
+
+	/**
+	 * Constructor - a new, empty record for one job.
+	 */
+	public FileLatencies() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Adds the time since the last lap to a stage of the current thread's file.
+	 *
+	 * @param stage - the stage that has just finished.
+	 * @param since - when it started, from System.nanoTime().
+	 * @return - the time now, to pass to the next lap.
+	 */
+	public static long lap(Stage stage, long since) {
+		long now = System.nanoTime();
+		STAGE_NANOS.get()[stage.ordinal()] += now - since;
+		return now;
+	}
+
+	/**
+	 * Clears the stage times of the current thread before it starts a file.
+	 */
+	public static void startFile() {
+		long[] stageNanos = STAGE_NANOS.get();
+		for (int i = 0; i < stageNanos.length; i++) {
+			stageNanos[i] = 0;
+		}
+	}
+
+	/**
+	 * @param stage - a stage.
+	 * @return - the time the current thread's file has spent in the stage since
+	 *         {@link #startFile}, in nanoseconds.
+	 */
+	static long stageNanos(Stage stage) {
+		return STAGE_NANOS.get()[stage.ordinal()];
+	}
+
+	/**
+	 * Records the file the current thread has just finished, with the stage times
+	 * added since {@link #startFile}.
+	 *
+	 * @param name  - the name of the file.
+	 * @param nanos - the whole time of the file.
+	 */
+	public void record(String name, long nanos) {
+		long[] stageNanos = STAGE_NANOS.get();
+		total.record(nanos);
+		for (int i = 0; i < stages.length; i++) {
+			stages[i].record(stageNanos[i]);
+		}
+
+		synchronized (slowest) {
+			if (slowest.size() < SLOWEST_FILES || nanos > slowest.peek().nanos()) {
+				slowest.add(new SlowFile(name, nanos, stageNanos.clone()));
+				if (slowest.size() > SLOWEST_FILES) {
+					slowest.poll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return - the number of files recorded.
+	 */
+	public long getCount() {
+		return total.getCount();
+	}
+
+	/**
+	 * @return - the report lines: the percentiles of the whole time and of each
+	 *         stage, then the slowest files with their stage times, slowest first.
+	 */
+	public List<String> report() {
+		List<String> lines = new ArrayList<>();
+		lines.add("Time per file (" + total.getCount() + " files): " + total.summary());
+		for (Stage stage : Stage.values()) {
+			lines.add(String.format("  %-7s%s", stage.name().toLowerCase(), stages[stage.ordinal()].summary()));
+		}
+
+		List<SlowFile> files;
+		synchronized (slowest) {
+			files = new ArrayList<>(slowest);
+		}
+		files.sort(Comparator.comparingLong(SlowFile::nanos).reversed());
+		lines.add("Slowest files:");
+		for (SlowFile file : files) {
+			lines.add(String.format("  %s %.2f ms (read %.2f, cipher %.2f, write %.2f)", file.name(), file.nanos() / 1e6,
+					file.stageNanos()[Stage.READ.ordinal()] / 1e6, file.stageNanos()[Stage.CIPHER.ordinal()] / 1e6,
+					file.stageNanos()[Stage.WRITE.ordinal()] / 1e6));
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,237 @@
+package ie.atu.sw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Makes finished output files durable a group at a time. Each file is written
+ * under a temporary name first, so a crash can never leave a half-written file
+ * under its real name. Once a group of files is finished, they are all forced
+ * to disk together, renamed to their real names in one atomic step each, their
+ * directories are forced to disk so the new names survive a crash, and only
+ * then are they recorded, e.g. in the checkpoint journal.
+ *
+ * Forcing every file on its own is slow for many small files, because each
+ * force waits for the disk. A larger group shares the directory force and lets
+ * the disk handle the file forces together, at the cost of redoing more files
+ * after a crash. A group of one is the safest and slowest.
+ */
+public class GroupCommit {
+	private Committer committer;
+	private int groupSize;
+	private List<Pending> pending = new ArrayList<>();
+	private OwnerCheck ownerCheck;
+
+	private int groups;
+	private int files;
+	private long totalSyncNanos;
+	private long maxSyncNanos;
+
+	/**
+	 * Told about each file once it is committed, e.g. to record it in the
+	 * checkpoint journal.
+	 */
+	public interface Committer {
+		void committed(String inputName, File outputFile) throws IOException;
+	}
+
+	/**
+	 * Asked just before each file is renamed to its real name if this process
+	 * may still write it, e.g. if it still holds the file's lease.
+	 */
+	public interface OwnerCheck {
+		boolean owns(String inputName);
+	}
+
+	/*
+	 * A finished file waiting for its group to be committed.
+	 */
+	private record Pending(File temporaryFile, File outputFile, String inputName) {
+	}
+
+	/**
+	 * Constructor - a new group commit for the files of one job.
+	 *
+	 * @param committer - told about each file once it is committed.
+	 * @param groupSize - how many files are forced to disk together.
+	 */
+	public GroupCommit(Committer committer, int groupSize) {
+		if (groupSize < 1) {
+			throw new IllegalArgumentException("The group size must be at least 1");
+		}
+		this.committer = committer;
+		this.groupSize = groupSize;
+	}
+
+	/**
+	 * @param outputFile - the real name of an output file.
+	 * @return - the temporary name it is written under until it is committed.
+	 */
+	public static File temporaryFileFor(File outputFile) {
+		return new File(outputFile.getParentFile(), "." + outputFile.getName() + ".tmp");
+	}
+
+	/**
+	 * Sets the check made before each file is renamed to its real name. A file
+	 * that fails it is deleted instead, and not committed.
+	 *
+	 * @param ownerCheck - the check, or null to rename every file.
+	 */
+	public void setOwnerCheck(OwnerCheck ownerCheck) {
+		this.ownerCheck = ownerCheck;
+	}
+
+	/**
+	 * Renames a finished file, and its checksum sidecar if it has one, to its
+	 * real name in one atomic step each, replacing any older file.
+	 *
+	 * @param temporaryFile - the file as written.
+	 * @param outputFile    - its real name.
+	 * @throws IOException - if the file cannot be renamed.
+	 */
+	public static void moveIntoPlace(File temporaryFile, File outputFile) throws IOException {
+		rename(temporaryFile, outputFile);
+		File temporarySidecar = Integrity.sidecarFor(temporaryFile);
+		if (temporarySidecar.exists()) {
+			rename(temporarySidecar, Integrity.sidecarFor(outputFile));
+		}
+	}
+
+	/**
+	 * Deletes a finished file that will not be committed, and its sidecar.
+	 *
+	 * @param temporaryFile - the file as written.
+	 * @throws IOException - if the file cannot be deleted.
+	 */
+	public static void discard(File temporaryFile) throws IOException {
+		Files.deleteIfExists(temporaryFile.toPath());
+		Files.deleteIfExists(Integrity.sidecarFor(temporaryFile).toPath());
+	}
+
+	/**
+	 * Adds a finished file to the current group. If the group is full, it is
+	 * committed by the calling thread while other threads carry on.
+	 *
+	 * @param temporaryFile - the file as written.
+	 * @param outputFile    - the name it is renamed to.
+	 * @param inputName     - the input file it came from, for the journal.
+	 * @throws IOException - if the group cannot be committed.
+	 */
+	public void add(File temporaryFile, File outputFile, String inputName) throws IOException {
+		List<Pending> group = null;
+		synchronized (this) {
+			pending.add(new Pending(temporaryFile, outputFile, inputName));
+			if (pending.size() >= groupSize) {
+				group = pending;
+				pending = new ArrayList<>();
+			}
+		}
+		if (group != null) {
+			commit(group);
+		}
+	}
+
+	/**
+	 * Commits the files left in the last group, which may not be full.
+	 *
+	 * @throws IOException - if the files cannot be committed.
+	 */
+	public void flush() throws IOException {
+		List<Pending> group;
+		synchronized (this) {
+			group = pending;
+			pending = new ArrayList<>();
+		}
+		if (!group.isEmpty()) {
+			commit(group);
+		}
+	}
+
+	/**
+	 * @return - a line with the number of groups and how long forcing them to disk
+	 *         took.
+	 */
+	public synchronized String report() {
+		double meanMillis = groups == 0 ? 0 : totalSyncNanos / 1e6 / groups;
+		return String.format("Synced %d file(s) in %d group(s): mean %.2f ms per group, max %.2f ms.", files, groups,
+				meanMillis, maxSyncNanos / 1e6);
+	}
+
+	/*
+	 * Forces the files of a group to disk, renames them and records them.
+	 */
+	private void commit(List<Pending> group) throws IOException {
+		long start = System.nanoTime();
+		try {
+			// The forces are issued from several threads so the disk can take them together.
+			group.parallelStream().forEach(file -> {
+				try {
+					force(file.temporaryFile(), StandardOpenOption.WRITE);
+					File temporarySidecar = Integrity.sidecarFor(file.temporaryFile());
+					if (temporarySidecar.exists()) {
+						force(temporarySidecar, StandardOpenOption.WRITE);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		List<Pending> owned = new ArrayList<>();
+		for (Pending file : group) {
+			if (ownerCheck == null || ownerCheck.owns(file.inputName())) {
+				moveIntoPlace(file.temporaryFile(), file.outputFile());
+				owned.add(file);
+			} else {
+				discard(file.temporaryFile());
+			}
+		}
+		// With a sharded layout the files of a group can be in different directories.
+		Set<File> directories = new HashSet<>();
+		for (Pending file : owned) {
+			directories.add(file.outputFile().getAbsoluteFile().getParentFile());
+		}
+		for (File directory : directories) {
+			force(directory, StandardOpenOption.READ);
+		}
+		long syncNanos = System.nanoTime() - start;
+		Metrics.get().synced(syncNanos);
+
+		for (Pending file : owned) {
+			committer.committed(file.inputName(), file.outputFile());
+		}
+		synchronized (this) {
+			groups++;
+			files += owned.size();
+			totalSyncNanos += syncNanos;
+			maxSyncNanos = Math.max(maxSyncNanos, syncNanos);
+		}
+	}
+
+	/*
+	 * Forces a file, or the entries of a directory, to disk.
+	 */
+	private static void force(File file, StandardOpenOption mode) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), mode)) {
+			channel.force(true);
+		}
+	}
+
+	/*
+	 * Renames a file in one step, replacing any older file with that name.
+	 */
+	private static void rename(File from, File to) throws IOException {
+		Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
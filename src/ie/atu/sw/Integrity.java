@@ -0,0 +1,169 @@
+package ie.atu.sw;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums for encrypted files, so a truncated or corrupted file can be
+ * found without decrypting it. Files in the block format keep their checksums
+ * in their trailer. Files in the original format get a small sidecar file next
+ * to them, named after the file with ".crc" added, holding the same fields.
+ */
+public class Integrity {
+	private static final int BUFFER_BYTES = 1024 * 1024;
+
+	/**
+	 * The result of checking one file.
+	 */
+	public enum Status {
+		OK, CORRUPT, UNCHECKED
+	}
+
+	/**
+	 * Writes the sidecar file for an encrypted file in the original format.
+	 *
+	 * @param encryptedFile - the encrypted file.
+	 * @param ciphertext    - the text written to the encrypted file.
+	 * @param plaintext     - the parsed plaintext it was encrypted from.
+	 * @throws IOException - if the sidecar cannot be written.
+	 */
+	public static void writeSidecar(File encryptedFile, String ciphertext, String plaintext) throws IOException {
+		writeSidecar(encryptedFile, ciphertext.length(), crcOf(ciphertext), crcOf(plaintext));
+	}
+
+	/**
+	 * Writes the sidecar file for an encrypted file in the original format from
+	 * checksums that are already worked out.
+	 *
+	 * @param encryptedFile    - the encrypted file.
+	 * @param ciphertextLength - the length of the encrypted file.
+	 * @param ciphertextCrc    - the CRC32C of the encrypted file.
+	 * @param plaintextCrc     - the CRC32C of the parsed plaintext.
+	 * @throws IOException - if the sidecar cannot be written.
+	 */
+	public static void writeSidecar(File encryptedFile, long ciphertextLength, long ciphertextCrc, long plaintextCrc)
+			throws IOException {
+		try (FileWriter writer = new FileWriter(sidecarFor(encryptedFile))) {
+			writer.write("#length=" + ciphertextLength + " crc=" + ciphertextCrc + " plaincrc=" + plaintextCrc + "\n");
+		}
+	}
+
+	/**
+	 * Checks one encrypted file against its checksum.
+	 *
+	 * @param file - the encrypted file.
+	 * @return - OK if the checksum matched, CORRUPT if it did not or the file is
+	 *         truncated, or UNCHECKED if the file has no checksum.
+	 * @throws IOException - if the file cannot be read.
+	 */
+	public static Status verify(File file) throws IOException {
+		if (RecordFormat.isRecords(file)) {
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES)) {
+				RecordFormat.verify(in);
+				return Status.UNCHECKED;
+			} catch (IOException e) {
+				return Status.CORRUPT;
+			}
+		}
+		if (BlockFormat.isBlocked(file)) {
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES)) {
+				return BlockFormat.verify(in) ? Status.OK : Status.UNCHECKED;
+			} catch (IOException e) {
+				return Status.CORRUPT;
+			}
+		}
+
+		File sidecar = sidecarFor(file);
+		if (!sidecar.isFile()) {
+			return Status.UNCHECKED;
+		}
+		Map<String, Long> expected = BlockFormat.parseTrailer(Files.readString(sidecar.toPath()));
+		boolean matches = expected.getOrDefault("length", -1L) == file.length()
+				&& expected.getOrDefault("crc", -1L) == crcOfFile(file);
+		return matches ? Status.OK : Status.CORRUPT;
+	}
+
+	/**
+	 * Works out the CRC32C of a whole file.
+	 *
+	 * @param file - the file to read.
+	 * @return - the checksum.
+	 * @throws IOException - if the file cannot be read.
+	 */
+	public static long crcOfFile(File file) throws IOException {
+		CRC32C crc = new CRC32C();
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[BUFFER_BYTES];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, count);
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Checks every encrypted file in a directory, several files at a time. Files
+	 * that fail are listed, followed by a summary.
+	 *
+	 * @param directoryPath - the directory to check.
+	 * @param out           - receives the list of failed files and the summary.
+	 * @return - the number of files that are corrupt or could not be read.
+	 * @throws IOException - if the directory cannot be listed.
+	 */
+	public static int verifyDirectory(String directoryPath, PrintStream out) throws IOException {
+		File[] files = ShardedLayout.listInputFiles(new File(directoryPath));
+		AtomicInteger ok = new AtomicInteger();
+		AtomicInteger unchecked = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+
+		Arrays.stream(files).parallel().forEach(file -> {
+			try {
+				switch (verify(file)) {
+				case OK -> ok.incrementAndGet();
+				case UNCHECKED -> unchecked.incrementAndGet();
+				case CORRUPT -> {
+					failed.incrementAndGet();
+					out.println("CORRUPT: " + file.getName());
+				}
+				}
+			} catch (IOException e) {
+				failed.incrementAndGet();
+				out.println("UNREADABLE: " + file.getName() + " (" + e.getMessage() + ")");
+			}
+		});
+
+		out.println("Checked " + files.length + " file(s): " + ok + " OK, " + failed + " corrupt, "
+				+ unchecked + " without a checksum.");
+		return failed.get();
+	}
+
+	/*
+	 * The sidecar file that holds the checksums of a file in the original format.
+	 */
+	static File sidecarFor(File encryptedFile) {
+		return new File(encryptedFile.getParentFile(), encryptedFile.getName() + ".crc");
+	}
+
+	/*
+	 * The CRC32C of the characters of a text. The texts are ADFGVX letters or
+	 * parsed plaintext, so each character is a single byte.
+	 */
+	private static long crcOf(String text) {
+		CRC32C crc = new CRC32C();
+		crc.update(text.getBytes(StandardCharsets.US_ASCII));
+		return crc.getValue();
+	}
+
+}
@@ -99,22 +99,34 @@ public class Key {
 	 * @return true - if the key (that the user has inputted) follows all the
 	 *         requirements: otherwise it returns false.
 	 */
-	private boolean verifyKey(String key) {
+	public boolean verifyKey(String key) {
+		String problem = problemWith(key);
+		if (problem != null) {
+			System.out.println(problem);
+			return false;
+		}
+		return true;
+	}
 
+	/**
+	 * Checks a key against the same rules as {@link #verifyKey}, without printing
+	 * anything.
+	 * 
+	 * @param key - The key String to validate
+	 * @return - a message saying what is wrong with the key, or null if it is
+	 *         valid.
+	 */
+	public static String problemWith(String key) {
 		if (key.length() < 4) {
-			System.out.println("You must insert a passcode that is a minimum of 4 characters");
-			return false;
+			return "You must insert a passcode that is a minimum of 4 characters";
 		} else if (key.length() > 15) {
-			System.out.println("Your key is has more than 15 characters. Please try again!");
-			return false;
+			return "Your key is has more than 15 characters. Please try again!";
 		} else if (hasReoccuringChars(key)) {
-			System.out.println("Your Key has reoccuring characters. Please try again");
-			return false;
+			return "Your Key has reoccuring characters. Please try again";
 		} else if (!containsOnlyLettersAndDigits(key)) {
-			System.out.println("Your key can only contain letters and digits! Please try again!");
-			return false;
+			return "Your key can only contain letters and digits! Please try again!";
 		}
-		return true;
+		return null;
 	}
 
 	/**
@@ -154,7 +166,7 @@ public class Key {
 	 * @param key - The key String to be checked.
 	 * @return true - if the key only contains letters and digits: otherwise false.
 	 */
-	private boolean containsOnlyLettersAndDigits(String key) {
+	private static boolean containsOnlyLettersAndDigits(String key) {
 		for (char character : key.toCharArray()) {
 			if (!Character.isLetterOrDigit(character)) {
 				return false;
@@ -170,7 +182,7 @@ public class Key {
 	 * @return - true if the string has a reoccuring characters: otherwise false if
 	 *         characters are unique.
 	 */
-	private boolean hasReoccuringChars(String userInput) {
+	private static boolean hasReoccuringChars(String userInput) {
 
 		// Iterate through each character in the string.
 		for (int i = 0; i < userInput.length(); i++) {
@@ -0,0 +1,313 @@
+package ie.atu.sw;
+
+import java.util.Arrays;
+
+/**
+ * A key compiled for fast encryption and decryption. The column order is worked
+ * out once when the plan is created, and lookup tables built from the Polybius
+ * square let each character be encoded or decoded with one array access instead
+ * of searching the square. A plan never changes, so one plan can be shared by
+ * many threads.
+ *
+ * Encrypting and decrypting blocks does not allocate once each thread has
+ * handled its first block: the encoded letters go through a scratch buffer
+ * kept per thread, see {@link SelfCheck}.
+ */
+public class KeyPlan {
+	private static final byte[] ENCODED_ROW = new byte[128]; 	// Character -> ADFGVX letter of its row.
+	private static final byte[] ENCODED_COLUMN = new byte[128]; // Character -> ADFGVX letter of its column.
+	private static final byte[] ADFGVX_INDEX = new byte[128]; 	// ADFGVX letter -> its index, or -1.
+	private static final byte[] SQUARE = new byte[36]; 			// The Polybius square, row by row.
+	// Encoded letters of the block being handled, grown to the largest block seen.
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[0]);
+
+	static {
+		Arrays.fill(ADFGVX_INDEX, (byte) -1);
+		for (int row = 0; row < Encryption.ADFGVX_ARRAY.length; row++) {
+			ADFGVX_INDEX[Encryption.ADFGVX_ARRAY[row]] = (byte) row;
+			for (int column = 0; column < Encryption.ADFGVX_ARRAY.length; column++) {
+				char character = Encryption.POLYBIUS_SQUARE[row][column];
+				ENCODED_ROW[character] = (byte) Encryption.ADFGVX_ARRAY[row];
+				ENCODED_COLUMN[character] = (byte) Encryption.ADFGVX_ARRAY[column];
+				SQUARE[row * Encryption.ADFGVX_ARRAY.length + column] = (byte) character;
+			}
+		}
+	}
+
+	private char[] key;
+	private int[] readOrder; 	// Sorted position -> column of the key.
+
+	/**
+	 * Constructor - compiles the given key.
+	 *
+	 * @param key - the encryption key.
+	 */
+	public KeyPlan(char[] key) {
+		this.key = Arrays.copyOf(key, key.length);
+		this.readOrder = determineColumnOrder(this.key, orderKeyAlphanumerically(this.key));
+	}
+
+	/**
+	 * @return - a copy of the key the plan was compiled from.
+	 */
+	public char[] key() {
+		return Arrays.copyOf(key, key.length);
+	}
+
+	/**
+	 * @return - the number of columns, i.e. the key length.
+	 */
+	public int columns() {
+		return key.length;
+	}
+
+	/**
+	 * @return - a copy of the order in which the columns are read, i.e. for each
+	 *         sorted position, the column of the key it came from.
+	 */
+	public int[] readOrder() {
+		return Arrays.copyOf(readOrder, readOrder.length);
+	}
+
+	/**
+	 * Encodes the letters and digits in a range with the Polybius square. Each
+	 * character becomes two ADFGVX letters.
+	 *
+	 * @param plaintext     - uppercase letters and digits.
+	 * @param offset        - first character to encode.
+	 * @param length        - number of characters to encode.
+	 * @param encoded       - receives 2 * length ADFGVX letters.
+	 * @param encodedOffset - where to start writing in encoded.
+	 * @throws IllegalArgumentException - if a character is not in the square.
+	 */
+	public static void encode(byte[] plaintext, int offset, int length, byte[] encoded, int encodedOffset) {
+		for (int i = 0; i < length; i++) {
+			int character = plaintext[offset + i] & 0x7F;
+			byte row = ENCODED_ROW[character];
+			if (row == 0 || plaintext[offset + i] < 0) {
+				throw new IllegalArgumentException(
+						"Oops! The Polybius Square does NOT contain this character: " + (char) (plaintext[offset + i] & 0xFF));
+			}
+			encoded[encodedOffset + 2 * i] = row;
+			encoded[encodedOffset + 2 * i + 1] = ENCODED_COLUMN[character];
+		}
+	}
+
+	/**
+	 * The two ADFGVX letters for a character, packed as row letter * 256 + column
+	 * letter.
+	 *
+	 * @param character - an uppercase letter or digit.
+	 * @return - the encoded pair.
+	 * @throws IllegalArgumentException - if the character is not in the square.
+	 */
+	public static int encodedPair(byte character) {
+		byte row = character < 0 ? 0 : ENCODED_ROW[character];
+		if (row == 0) {
+			throw new IllegalArgumentException(
+					"Oops! The Polybius Square does NOT contain this character: " + (char) (character & 0xFF));
+		}
+		return row << 8 | ENCODED_COLUMN[character];
+	}
+
+	/**
+	 * Decodes one pair of ADFGVX letters.
+	 *
+	 * @param first  - the letter giving the row of the square.
+	 * @param second - the letter giving the column of the square.
+	 * @return - the character in the square.
+	 * @throws IllegalArgumentException - if a letter is not one of ADFGVX.
+	 */
+	public static byte decodePair(byte first, byte second) {
+		return SQUARE[index(first) * 6 + index(second)];
+	}
+
+	/**
+	 * Decodes pairs of ADFGVX letters back into characters with the Polybius square.
+	 *
+	 * @param encoded         - the ADFGVX letters.
+	 * @param offset          - first letter to decode.
+	 * @param length          - number of letters to decode; an odd last letter is
+	 *                        ignored.
+	 * @param plaintext       - receives length / 2 characters.
+	 * @param plaintextOffset - where to start writing in plaintext.
+	 * @throws IllegalArgumentException - if a letter is not one of ADFGVX.
+	 */
+	public static void decode(byte[] encoded, int offset, int length, byte[] plaintext, int plaintextOffset) {
+		for (int i = 0; i < length / 2; i++) {
+			int row = index(encoded[offset + 2 * i]);
+			int column = index(encoded[offset + 2 * i + 1]);
+			plaintext[plaintextOffset + i] = SQUARE[row * 6 + column];
+		}
+	}
+
+	/**
+	 * Encrypts a block of plaintext on its own. The encoded letters are written
+	 * into a matrix row by row and read out column by column in key order. When
+	 * the encoded length is not a multiple of the key length, the first columns
+	 * are one row longer than the rest, so no character is dropped.
+	 *
+	 * @param plaintext        - uppercase letters and digits.
+	 * @param offset           - first character of the block.
+	 * @param length           - number of characters in the block.
+	 * @param ciphertext       - receives 2 * length ADFGVX letters.
+	 * @param ciphertextOffset - where to start writing in ciphertext.
+	 */
+	public void encryptBlock(byte[] plaintext, int offset, int length, byte[] ciphertext, int ciphertextOffset) {
+		int encodedLength = 2 * length;
+		byte[] encoded = scratch(encodedLength);
+		encode(plaintext, offset, length, encoded, 0);
+
+		int columns = key.length;
+		int position = ciphertextOffset;
+		for (int column : readOrder) {
+			for (int index = column; index < encodedLength; index += columns) {
+				ciphertext[position++] = encoded[index];
+			}
+		}
+	}
+
+	/**
+	 * Decrypts a block written by {@link #encryptBlock}.
+	 *
+	 * @param ciphertext      - the ADFGVX letters of the block.
+	 * @param offset          - first letter of the block.
+	 * @param length          - number of letters in the block.
+	 * @param plaintext       - receives length / 2 characters.
+	 * @param plaintextOffset - where to start writing in plaintext.
+	 */
+	public void decryptBlock(byte[] ciphertext, int offset, int length, byte[] plaintext, int plaintextOffset) {
+		byte[] encoded = scratch(length);
+
+		int columns = key.length;
+		int position = offset;
+		for (int column : readOrder) {
+			for (int index = column; index < length; index += columns) {
+				encoded[index] = ciphertext[position++];
+			}
+		}
+		decode(encoded, 0, length, plaintext, plaintextOffset);
+	}
+
+	/**
+	 * Encrypts text into the original single-matrix format, giving the same
+	 * letters as {@link Encryption#encryptText}. The encoded letters that do not
+	 * fill a whole row are dropped, as in the original format.
+	 *
+	 * @param plaintext - uppercase letters and digits.
+	 * @param offset    - first character to encrypt.
+	 * @param length    - number of characters to encrypt.
+	 * @return - the ADFGVX letters, column by column in key order.
+	 * @throws IllegalArgumentException - if a character is not in the square.
+	 */
+	public byte[] encryptMatrix(byte[] plaintext, int offset, int length) {
+		int columns = key.length;
+		int rows = (int) (2L * length / columns);
+		byte[] ciphertext = new byte[rows * columns];
+
+		// Column 'col' holds encoded letter row * columns + col, which is one half of
+		// the pair for character (row * columns + col) / 2.
+		for (int position = 0; position < columns; position++) {
+			int col = readOrder[position];
+			for (int row = 0; row < rows; row++) {
+				int encoded = row * columns + col;
+				int pair = encodedPair(plaintext[offset + encoded / 2]);
+				ciphertext[position * rows + row] = (byte) ((encoded & 1) == 0 ? pair >> 8 : pair);
+			}
+		}
+		return ciphertext;
+	}
+
+	/**
+	 * Decrypts text in the original single-matrix format.
+	 *
+	 * @param ciphertext - the ADFGVX letters.
+	 * @param offset     - first letter of the text.
+	 * @param length     - number of letters.
+	 * @return - the decrypted characters.
+	 * @throws IllegalArgumentException - if a letter is not one of ADFGVX.
+	 */
+	public byte[] decryptMatrix(byte[] ciphertext, int offset, int length) {
+		int columns = key.length;
+		int rows = length / columns;
+		int[] columnStart = new int[columns];
+		for (int position = 0; position < columns; position++) {
+			columnStart[readOrder[position]] = offset + position * rows;
+		}
+
+		// Read the matrix back row by row, two encoded letters at a time.
+		byte[] plaintext = new byte[rows * columns / 2];
+		for (int i = 0; i < plaintext.length; i++) {
+			int first = 2 * i;
+			int second = first + 1;
+			plaintext[i] = decodePair(ciphertext[columnStart[first % columns] + first / columns],
+					ciphertext[columnStart[second % columns] + second / columns]);
+		}
+		return plaintext;
+	}
+
+	/*
+	 * The current thread's scratch buffer, with room for at least length bytes.
+	 */
+	private static byte[] scratch(int length) {
+		byte[] scratch = SCRATCH.get();
+		if (scratch.length < length) {
+			scratch = new byte[length];
+			SCRATCH.set(scratch);
+		}
+		return scratch;
+	}
+
+	/*
+	 * Finds the index of an ADFGVX letter, which is its row or column in the square.
+	 */
+	private static int index(byte letter) {
+		int index = letter < 0 ? -1 : ADFGVX_INDEX[letter];
+		if (index < 0) {
+			throw new IllegalArgumentException("Invalid ADFGVX character pair");
+		}
+		return index;
+	}
+
+	/**
+	 * Makes a copy of the original key and sorts it alphanumerically - i.e. numbers
+	 * first followed by letters. This does NOT alter the original key but instead
+	 * creates and returns a sorted version.
+	 *
+	 * @param key - The key used to be sorted alphanumerically.
+	 * @return - new char array of the alphanumeric sorted copy of the key.
+	 */
+	private static char[] orderKeyAlphanumerically(char[] key) {
+		char[] copiedKey = Arrays.copyOf(key, key.length);
+
+		Arrays.sort(copiedKey);
+		char[] sortedKey = copiedKey;
+
+		return sortedKey;
+	}
+
+	/**
+	 * Determines the columns order based on the alphanumeric sorting of the sorted
+	 * key.
+	 *
+	 * @param key - encryption key - order will be used to determine the column
+	 *            order.
+	 * @return - an array of each index representing which order the columns should
+	 *         be read.
+	 */
+	private static int[] determineColumnOrder(char[] originalKey, char[] sortedKey) {
+
+		int[] order = new int[originalKey.length];
+
+		for (int i = 0; i < originalKey.length; i++) {
+			for (int j = 0; j < sortedKey.length; j++) {
+				if (originalKey[i] == sortedKey[j] && order[j] == 0) {
+					order[j] = i;
+					break;
+				}
+			}
+		}
+		return order;
+	}
+
+}
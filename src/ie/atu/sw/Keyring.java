@@ -0,0 +1,160 @@
+package ie.atu.sw;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Maps files to keys, so a directory whose files belong to different owners
+ * can be processed in one run instead of one run per key. A keyring file has
+ * one mapping per line, a pattern and a key separated by spaces or a tab:
+ *
+ * <pre>
+ * # Lines starting with # are comments.
+ * alice/        ZEBRA12
+ * *.bob.txt     K3YB0W
+ * **            DEFAULT1
+ * </pre>
+ *
+ * A pattern ending in / maps everything under that subdirectory. Any other
+ * pattern is a glob: without a / it is matched against the file name, with one
+ * against the path from the input directory, e.g. "reports/2024-*.txt". The
+ * first pattern that matches a file gives its key. Each different key is
+ * compiled into a {@link KeyPlan} once, when the keyring is loaded, and the
+ * plans are shared by every thread.
+ *
+ * With a keyring, the input directory is read with its subdirectories, and
+ * each output is written in the same subdirectory as its input, so a keyring
+ * that maps subdirectories works for decrypting the outputs too. Patterns on
+ * file names do not match the numbered output names.
+ */
+public class Keyring {
+	private List<Mapping> mappings = new ArrayList<>();
+	private Map<String, KeyPlan> plans = new HashMap<>(); 	// One compiled plan per key.
+
+	/*
+	 * One line of the keyring.
+	 */
+	private record Mapping(String pattern, PathMatcher matcher, boolean wholePath, KeyPlan plan) {
+	}
+
+	/**
+	 * Loads a keyring file, checking every key against the same rules as the menu.
+	 *
+	 * @param file - the keyring file.
+	 * @return - the keyring.
+	 * @throws IOException              - if the file cannot be read.
+	 * @throws IllegalArgumentException - if a line is not valid, with its number.
+	 */
+	public static Keyring load(File file) throws IOException {
+		Keyring keyring = new Keyring();
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).strip();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			if (fields.length != 2) {
+				throw new IllegalArgumentException(
+						file + " line " + (i + 1) + ": expected a pattern and a key, separated by spaces");
+			}
+			try {
+				keyring.add(fields[0], fields[1]);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(file + " line " + (i + 1) + ": " + e.getMessage());
+			}
+		}
+		if (keyring.mappings.isEmpty()) {
+			throw new IllegalArgumentException("The keyring " + file + " has no keys");
+		}
+		return keyring;
+	}
+
+	/**
+	 * Adds a mapping after the ones already in the keyring.
+	 *
+	 * @param pattern - a glob, or a subdirectory ending in /.
+	 * @param key     - the key for the files it matches.
+	 * @throws IllegalArgumentException - if the pattern or the key is not valid.
+	 */
+	public void add(String pattern, String key) {
+		String keyText = key.trim().toUpperCase();
+		String problem = Key.problemWith(keyText);
+		if (problem != null) {
+			throw new IllegalArgumentException(problem);
+		}
+		String glob = pattern.endsWith("/") ? pattern + "**" : pattern;
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		KeyPlan plan = plans.computeIfAbsent(keyText, text -> new KeyPlan(text.toCharArray()));
+		mappings.add(new Mapping(pattern, matcher, glob.contains("/"), plan));
+	}
+
+	/**
+	 * @return - the number of different keys, each compiled once.
+	 */
+	public int keyCount() {
+		return plans.size();
+	}
+
+	/**
+	 * Finds the compiled key for a file.
+	 *
+	 * @param relativePath - the file's path from the input directory, with / between
+	 *                     names.
+	 * @return - the plan of the first pattern that matches, or null if none does.
+	 */
+	public KeyPlan planFor(String relativePath) {
+		Path path = Path.of(relativePath);
+		Path name = path.getFileName();
+		for (Mapping mapping : mappings) {
+			if (mapping.matcher().matches(mapping.wholePath() ? path : name)) {
+				return mapping.plan();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Lists the text files to process in an input directory and all of its
+	 * subdirectories, in order of their paths. Hidden files and directories,
+	 * e.g. the leases of a shared job, are left out.
+	 *
+	 * @param directory - the input directory.
+	 * @return - the files, in order.
+	 * @throws IOException - if a directory cannot be read.
+	 */
+	public static File[] listInputFiles(File directory) throws IOException {
+		Path root = directory.toPath();
+		try (Stream<Path> paths = Files.walk(root)) {
+			return paths.filter(path -> Files.isRegularFile(path) && path.getFileName().toString().endsWith(".txt"))
+					.filter(path -> {
+						for (Path part : root.relativize(path)) {
+							if (part.toString().startsWith(".")) {
+								return false;
+							}
+						}
+						return true;
+					}).sorted().map(Path::toFile).toArray(File[]::new);
+		}
+	}
+
+	/**
+	 * @param directory - the input directory.
+	 * @param file      - a file in it or one of its subdirectories.
+	 * @return - the file's path from the directory, with / between names.
+	 */
+	public static String relativePath(File directory, File file) {
+		return directory.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+	}
+
+}
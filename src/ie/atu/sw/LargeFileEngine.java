@@ -0,0 +1,238 @@
+package ie.atu.sw;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Encrypts and decrypts files in the original single-matrix format without
+ * holding them in memory. The other engines keep a whole file in a String,
+ * StringBuilder or char[][], which cannot hold more than about 2^31 characters,
+ * so a plaintext over about 1 GB cannot be encrypted there. This engine works
+ * on the files themselves with long positions: the plaintext is read through
+ * memory-mapped windows, and each column of the matrix is written straight to
+ * its place in the output file from a reused direct buffer, a slice of rows at
+ * a time. The columns of each slice are worked on in parallel, so one very
+ * large file still uses every processor. Neither the matrix nor the text is
+ * ever built on the Java heap, so the file size is limited only by the disk.
+ */
+public class LargeFileEngine {
+	private static final int CHUNK_ROWS = 4 * 1024 * 1024; 	// Matrix rows handled at a time (an even number).
+
+	private KeyPlan plan;
+	private int chunkRows = CHUNK_ROWS;
+	private long plaintextCrc;
+	private long ciphertextLength;
+
+	/**
+	 * Constructor - a new engine for the given compiled key.
+	 *
+	 * @param plan - the compiled key.
+	 */
+	public LargeFileEngine(KeyPlan plan) {
+		this.plan = plan;
+	}
+
+	/**
+	 * Constructor - a new engine handling fewer rows at a time, so a small file
+	 * crosses several chunks, e.g. to check the chunk boundaries.
+	 *
+	 * @param plan      - the compiled key.
+	 * @param chunkRows - matrix rows handled at a time, an even number.
+	 */
+	LargeFileEngine(KeyPlan plan, int chunkRows) {
+		if (chunkRows < 2 || chunkRows % 2 != 0) {
+			throw new IllegalArgumentException("The chunk must be an even number of rows");
+		}
+		this.plan = plan;
+		this.chunkRows = chunkRows;
+	}
+
+	/**
+	 * Encrypts a text file into the original format. The output is the same as
+	 * {@link Encryption#encryptText} would give for the parsed file.
+	 *
+	 * @param inputFile  - the plaintext file.
+	 * @param outputFile - where the encrypted text is written.
+	 * @throws IOException - if a file cannot be read or written.
+	 */
+	public void encrypt(File inputFile, File outputFile) throws IOException {
+		// The letters are read out of order, so the parsed plaintext is kept in a
+		// temporary file next to the output and read back through mapped windows.
+		File letterFile = File.createTempFile("." + outputFile.getName(), ".letters", outputFile.getParentFile());
+		try {
+			long lap = System.nanoTime();
+			long letterCount = writeLetters(inputFile, letterFile);
+			lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+			int columns = plan.columns();
+			int[] readOrder = plan.readOrder();
+			long rows = 2 * letterCount / columns;
+			ciphertextLength = rows * columns;
+
+			try (FileChannel letters = FileChannel.open(letterFile.toPath(), StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				// The columns of a slice are filled and written in parallel, each thread
+				// reusing its own direct buffer; positional writes do not share a position.
+				ThreadLocal<ByteBuffer> columnBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(chunkRows));
+
+				for (long firstRow = 0; firstRow < rows; firstRow += chunkRows) {
+					long sliceStart = firstRow;
+					int rowCount = (int) Math.min(chunkRows, rows - firstRow);
+					long firstLetter = firstRow * columns / 2;
+					long lastLetter = ((firstRow + rowCount) * columns - 1) / 2;
+					MappedByteBuffer window = letters.map(FileChannel.MapMode.READ_ONLY, firstLetter,
+							lastLetter - firstLetter + 1);
+
+					// Column 'col' of the matrix holds encoded character row * columns + col,
+					// which is one half of the pair for letter (row * columns + col) / 2.
+					try {
+						IntStream.range(0, columns).parallel().forEach(position -> {
+							int col = readOrder[position];
+							ByteBuffer column = columnBuffer.get();
+							column.clear();
+							for (long row = sliceStart; row < sliceStart + rowCount; row++) {
+								long encoded = row * columns + col;
+								int pair = KeyPlan.encodedPair(window.get((int) (encoded / 2 - firstLetter)));
+								column.put((byte) ((encoded & 1) == 0 ? pair >> 8 : pair));
+							}
+							column.flip();
+							try {
+								writeFully(out, column, position * rows + sliceStart);
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						});
+					} catch (UncheckedIOException e) {
+						throw e.getCause();
+					}
+				}
+			}
+			// The columns are written as they are filled, so writing counts as cipher time.
+			FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+		} finally {
+			letterFile.delete();
+		}
+	}
+
+	/**
+	 * Decrypts a file in the original format. The output is the same as the
+	 * matrix decryption gives for a file written by the encryption.
+	 *
+	 * @param inputFile  - the encrypted file (no line breaks).
+	 * @param outputFile - where the decrypted text is written.
+	 * @throws IOException - if a file cannot be read or written.
+	 */
+	public void decrypt(File inputFile, File outputFile) throws IOException {
+		int columns = plan.columns();
+		int[] readOrder = plan.readOrder();
+
+		try (FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long rows = in.size() / columns;
+			ByteBuffer[] columnParts = new ByteBuffer[columns];
+			for (int col = 0; col < columns; col++) {
+				columnParts[col] = ByteBuffer.allocateDirect(chunkRows);
+			}
+			ByteBuffer plaintext = ByteBuffer.allocateDirect(chunkRows * columns / 2);
+			long written = 0;
+			long lap = System.nanoTime();
+
+			for (long firstRow = 0; firstRow < rows; firstRow += chunkRows) {
+				int rowCount = (int) Math.min(chunkRows, rows - firstRow);
+				for (int position = 0; position < columns; position++) {
+					ByteBuffer part = columnParts[readOrder[position]];
+					part.clear().limit(rowCount);
+					readFully(in, part, position * rows + firstRow);
+				}
+				lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+
+				// Read the slice of the matrix row by row, two encoded characters at a time.
+				// The chunk is an even number of rows, so a pair never crosses into the next slice.
+				int encodedCount = rowCount * columns;
+				plaintext.clear();
+				for (int encoded = 0; encoded + 1 < encodedCount; encoded += 2) {
+					byte first = columnParts[encoded % columns].get(encoded / columns);
+					byte second = columnParts[(encoded + 1) % columns].get((encoded + 1) / columns);
+					plaintext.put(KeyPlan.decodePair(first, second));
+				}
+				plaintext.flip();
+				lap = FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+				int count = plaintext.remaining();
+				writeFully(out, plaintext, written);
+				written += count;
+				lap = FileLatencies.lap(FileLatencies.Stage.WRITE, lap);
+			}
+		}
+	}
+
+	/**
+	 * @return - the CRC32C of the parsed plaintext of the last file encrypted.
+	 */
+	public long plaintextCrc() {
+		return plaintextCrc;
+	}
+
+	/**
+	 * @return - the length of the ciphertext of the last file encrypted.
+	 */
+	public long ciphertextLength() {
+		return ciphertextLength;
+	}
+
+	/*
+	 * Parses the input file into a file of uppercase letters, working out the
+	 * plaintext checksum on the way. Returns the number of letters.
+	 */
+	private long writeLetters(File inputFile, File letterFile) throws IOException {
+		CRC32C crc = new CRC32C();
+		long count = 0;
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(inputFile));
+				OutputStream out = new FileOutputStream(letterFile)) {
+			LetterReader reader = new LetterReader(in);
+			byte[] letters = new byte[1024 * 1024];
+			int read;
+			while ((read = reader.read(letters, 0, letters.length)) > 0) {
+				out.write(letters, 0, read);
+				crc.update(letters, 0, read);
+				count += read;
+			}
+		}
+		plaintextCrc = crc.getValue();
+		return count;
+	}
+
+	/*
+	 * Writes a whole buffer at a position in a file.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/*
+	 * Fills a buffer from a position in a file.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+
+}
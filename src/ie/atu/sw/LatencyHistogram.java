@@ -0,0 +1,107 @@
+package ie.atu.sw;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of times with a fixed size, in the style of HdrHistogram. Times
+ * are counted in microseconds. Below 128 microseconds every microsecond has its own
+ * bucket; above that, each power of two is split into 64 equal buckets, so a
+ * percentile is never more than about 1.6% above the real time, from a
+ * microsecond up to days, in about 20KB. Times can be recorded from many
+ * threads at once.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; 	// Buckets per power of two above the linear range.
+	private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+	private static final int POWERS = 40; 							// Up to 2^47 microseconds, over four years.
+
+	private AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + POWERS * SUB_BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Records one time.
+	 *
+	 * @param nanos - the time in nanoseconds.
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(Math.max(0, nanos) / 1000));
+		count.incrementAndGet();
+		maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * @return - the number of times recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return - the longest time recorded, exactly, in nanoseconds.
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * The time that the given percentage of the recorded times are at or below.
+	 *
+	 * @param percent - e.g. 99.9.
+	 * @return - the time in nanoseconds: the top of the bucket it falls in, but
+	 *         never more than the longest time; 0 if nothing was recorded.
+	 */
+	public long percentileNanos(double percent) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long wanted = Math.max(1, (long) Math.ceil(percent / 100 * total));
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length(); bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= wanted) {
+				return Math.min(highestMicrosOf(bucket) * 1000 + 999, maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return - p50, p90, p99, p99.9 and the maximum in milliseconds, on one line.
+	 */
+	public String summary() {
+		return String.format("p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f ms", percentileNanos(50) / 1e6,
+				percentileNanos(90) / 1e6, percentileNanos(99) / 1e6, percentileNanos(99.9) / 1e6,
+				getMaxNanos() / 1e6);
+	}
+
+	/*
+	 * The bucket of a time in microseconds. A time above the range goes in the
+	 * last bucket.
+	 */
+	private static int bucketOf(long micros) {
+		if (micros < LINEAR_BUCKETS) {
+			return (int) micros;
+		}
+		// Shift so the top bits fall in [SUB_BUCKETS, 2 * SUB_BUCKETS).
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		int bucket = LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+		return Math.min(bucket, LINEAR_BUCKETS + POWERS * SUB_BUCKETS - 1);
+	}
+
+	/*
+	 * The longest time in microseconds that falls in a bucket.
+	 */
+	private static long highestMicrosOf(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long top = SUB_BUCKETS + (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+}
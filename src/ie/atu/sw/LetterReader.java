@@ -0,0 +1,61 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a text stream a piece at a time, keeping only the letters and
+ * converting them to uppercase. This gives the same text as
+ * {@link Parser#parse}, but without holding the whole file in memory. Letters
+ * are single bytes in ASCII, Latin-1 and UTF-8, so the stream is read as bytes.
+ */
+public class LetterReader {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private InputStream in;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+
+	/**
+	 * Constructor - a new reader over the given stream.
+	 *
+	 * @param in - the text to read.
+	 */
+	public LetterReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads uppercase letters until the destination is full or the stream ends.
+	 *
+	 * @param letters - receives the letters.
+	 * @param offset  - where to start writing.
+	 * @param length  - the most letters to read.
+	 * @return - the number of letters read; less than length only at the end of
+	 *         the stream.
+	 * @throws IOException - if the stream cannot be read.
+	 */
+	public int read(byte[] letters, int offset, int length) throws IOException {
+		int count = 0;
+
+		while (count < length) {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					break;
+				}
+			}
+			byte character = buffer[position++];
+			if (character >= 'a' && character <= 'z') {
+				letters[offset + count++] = (byte) (character - ('a' - 'A'));
+			} else if (character >= 'A' && character <= 'Z') {
+				letters[offset + count++] = character;
+			}
+		}
+		return count;
+	}
+
+}
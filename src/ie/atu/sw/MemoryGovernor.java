@@ -0,0 +1,122 @@
+package ie.atu.sw;
+
+/**
+ * Keeps the memory used by files being processed at the same time under a
+ * budget. The in-memory engines expand each file into a String, a
+ * StringBuilder twice its size and one or two char[][] matrices, so a file
+ * needs many times its own size while it is being worked on. Before a file is
+ * started, its footprint is estimated from its size and the file waits until
+ * there is room for it in the budget. Files too big to fit comfortably are
+ * sent to the streaming engines, which use a small fixed amount of memory.
+ */
+public class MemoryGovernor {
+	// Estimated bytes of memory per byte of input for the in-memory engines.
+	static final int BYTES_PER_INPUT_BYTE = 24;
+	// Estimated memory used by the streaming engines for one file.
+	static final long STREAMING_BYTES = 96L * 1024 * 1024;
+	// Files larger than this always use a streaming engine.
+	static final long LARGE_FILE_BYTES = 256L * 1024 * 1024;
+
+	private long budget;
+	private long inUse;
+
+	/**
+	 * Constructor - a new governor with the given budget.
+	 *
+	 * @param budget - the most memory, in bytes, to use for files at one time.
+	 */
+	public MemoryGovernor(long budget) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("The memory budget must be more than 0");
+		}
+		this.budget = budget;
+	}
+
+	/**
+	 * @return - the default budget: half of the maximum heap size.
+	 */
+	public static long defaultBudget() {
+		return Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * Decides if a file should be processed by a streaming engine. This is the
+	 * case for files that are very large, or that would take more than half the
+	 * budget in memory.
+	 *
+	 * @param fileSize - the size of the input file in bytes.
+	 * @return - true if the file should be streamed.
+	 */
+	public synchronized boolean useStreaming(long fileSize) {
+		return fileSize > LARGE_FILE_BYTES || fileSize * BYTES_PER_INPUT_BYTE > budget / 2;
+	}
+
+	/**
+	 * Estimates the memory needed to process a file.
+	 *
+	 * @param fileSize  - the size of the input file in bytes.
+	 * @param streaming - true if a streaming engine is used.
+	 * @return - the estimated memory in bytes.
+	 */
+	public long estimate(long fileSize, boolean streaming) {
+		return streaming ? STREAMING_BYTES : fileSize * BYTES_PER_INPUT_BYTE;
+	}
+
+	/**
+	 * Waits until there is room in the budget for a file, then reserves its
+	 * memory. A file is always let through when nothing else is running, so a
+	 * file bigger than the budget cannot wait forever.
+	 *
+	 * @param fileSize  - the size of the input file in bytes.
+	 * @param streaming - true if a streaming engine is used.
+	 * @return - the memory reserved, to be given back with {@link #release}.
+	 * @throws InterruptedException - if the thread is interrupted while waiting.
+	 */
+	public synchronized long acquire(long fileSize, boolean streaming) throws InterruptedException {
+		long needed = estimate(fileSize, streaming);
+		while (inUse > 0 && inUse + needed > budget) {
+			wait();
+		}
+		inUse += needed;
+		return needed;
+	}
+
+	/**
+	 * Gives back memory reserved by {@link #acquire} once a file is finished.
+	 *
+	 * @param reserved - the memory that was reserved.
+	 */
+	public synchronized void release(long reserved) {
+		inUse -= reserved;
+		notifyAll();
+	}
+
+	/**
+	 * Changes the budget, e.g. while a job is running. Files waiting for room are
+	 * let through at once if the new budget has room for them.
+	 *
+	 * @param budget - the most memory, in bytes, to use for files at one time.
+	 */
+	public synchronized void setBudget(long budget) {
+		if (budget <= 0) {
+			throw new IllegalArgumentException("The memory budget must be more than 0");
+		}
+		this.budget = budget;
+		notifyAll();
+	}
+
+	/**
+	 * @return - the budget in bytes.
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return - the memory currently reserved for files, in bytes.
+	 */
+	public synchronized long getInUse() {
+		return inUse;
+	}
+
+}
@@ -30,6 +30,11 @@ public class Menu {
 		this.encryption = new Encryption(inputDirectory, outputDirectory, key);
 		this.decryption = new Decryption(inputDirectory, outputDirectory, key);
 		this.options = new Options(inputDirectory, outputDirectory, key);
+
+		// Runs from the menu are recorded, so Options can show how they compare.
+		RunHistory history = new RunHistory(RunHistory.defaultFile());
+		encryption.setHistory(history);
+		decryption.setHistory(history);
 	}
 
 	/**
@@ -94,11 +99,11 @@ public class Menu {
 					returnToMainMenu();
 				}
 				case 4 -> {
-					encryption.handleEncryption();
+					encryption.handleEncryption(askToResume("encrypted", "encryption"));
 					returnToMainMenu();
 				}
 				case 5 -> {
-					decryption.handleDecryption();
+					decryption.handleDecryption(askToResume("decrypted", "decryption"));
 					returnToMainMenu();
 				}
 				case 6 -> {
@@ -142,6 +147,35 @@ public class Menu {
 		showMainMenu();
 	}
 	
+	/**
+	 * If an earlier job into the output directory was interrupted, asks the user if
+	 * they want to continue it or start again.
+	 * 
+	 * @param outputPrefix - prefix of the job's output files, e.g. "encrypted".
+	 * @param jobName      - what the job is called in the question, e.g.
+	 *                     "encryption".
+	 * @return - true if the user wants to resume the interrupted job.
+	 */
+	private boolean askToResume(String outputPrefix, String jobName) {
+		String directory = outputDirectory.getOutputDirectory();
+		if (directory == null || !Checkpoint.exists(directory, outputPrefix)) {
+			return false;
+		}
+		System.out.println("An earlier " + jobName + " into this output directory did not finish.");
+		System.out.println("Would you like to resume it? y/n?");
+
+		while (true) {
+			String userChoice = scanner.nextLine();
+			if (userChoice.equalsIgnoreCase("y")) {
+				return true;
+			} else if (userChoice.equalsIgnoreCase("n")) {
+				return false;
+			} else {
+				System.out.println("Invalid Input! Please press 'y' or 'n'.");
+			}
+		}
+	}
+
 	/**
 	 * Give the user the option of exiting the program completely. If yes, a closing
 	 * message/ display is printed and program exits.
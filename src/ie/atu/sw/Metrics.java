@@ -0,0 +1,411 @@
+package ie.atu.sw;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Live counters for the running application and the settings that can be tuned
+ * while it runs, published as a platform MBean so they can be watched and
+ * changed from JConsole or jcmd. There is one instance per process, see
+ * {@link #get()}.
+ *
+ * Changed settings take effect without a restart: a new thread count is picked
+ * up by running batches before their next file, a new buffer size by the next
+ * file in the block format, and a new memory budget at once.
+ *
+ * Files are counted separately for each kind of job, e.g. "encrypted" and
+ * "decrypted", and their times, whole and split into the stages of
+ * {@link FileLatencies}, are kept in histograms, so they can also be exported
+ * to Prometheus, see {@link PrometheusExporter}.
+ */
+public class Metrics implements MetricsMBean {
+	static final String OBJECT_NAME = "ie.atu.sw:type=Metrics";
+	private static final Metrics INSTANCE = new Metrics();
+
+	private Map<String, JobStats> jobs = new ConcurrentHashMap<>();
+	private Histogram syncTimes = new Histogram();
+	private LongAdder keyCacheHits = new LongAdder();
+	private LongAdder keyCacheMisses = new LongAdder();
+	private LongAdder dedupHashed = new LongAdder();
+	private LongAdder dedupDuplicates = new LongAdder();
+	private AtomicInteger activeWorkers = new AtomicInteger();
+	private AtomicInteger queuedFiles = new AtomicInteger();
+
+	private volatile int threads; 			// 0 until set, so each job uses its own setting.
+	private volatile int bufferBytes = 4 * 1024 * 1024;
+	private volatile MemoryGovernor memoryGovernor;
+
+	/*
+	 * The counters of one kind of job.
+	 */
+	static class JobStats {
+		final LongAdder filesProcessed = new LongAdder();
+		final LongAdder filesFailed = new LongAdder();
+		final LongAdder bytesRead = new LongAdder();
+		final LongAdder bytesWritten = new LongAdder();
+		final LongAdder bytesAllocated = new LongAdder();
+		final Histogram fileTimes = new Histogram();
+		final Histogram[] stageTimes = new Histogram[FileLatencies.Stage.values().length];
+
+		JobStats() {
+			for (int i = 0; i < stageTimes.length; i++) {
+				stageTimes[i] = new Histogram();
+			}
+		}
+	}
+
+	/*
+	 * Counts how many times fall in each of a fixed set of buckets, so the
+	 * distribution can be exported, not just the mean.
+	 */
+	static class Histogram {
+		// The upper bound of each bucket in seconds; a last bucket holds the rest.
+		static final double[] BUCKET_SECONDS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+				2.5, 5, 10, 30, 60 };
+
+		final LongAdder[] buckets = new LongAdder[BUCKET_SECONDS.length + 1];
+		final LongAdder count = new LongAdder();
+		final LongAdder sumNanos = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			int bucket = 0;
+			while (bucket < BUCKET_SECONDS.length && nanos > BUCKET_SECONDS[bucket] * 1e9) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+			count.increment();
+			sumNanos.add(nanos);
+		}
+
+		double meanMillis() {
+			long times = count.sum();
+			return times == 0 ? 0 : sumNanos.sum() / 1e6 / times;
+		}
+
+		void reset() {
+			for (LongAdder bucket : buckets) {
+				bucket.reset();
+			}
+			count.reset();
+			sumNanos.reset();
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * @return - the metrics of this process.
+	 */
+	public static Metrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Publishes the metrics on the platform MBean server. Calling it again does
+	 * nothing.
+	 */
+	public static synchronized void register() {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+			}
+		} catch (JMException e) {
+			System.err.println("Error! Could not publish the metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Records a file that was processed, with the stage times the current thread
+	 * added since {@link FileLatencies#startFile}.
+	 *
+	 * @param job         - the kind of job, e.g. "encrypted".
+	 * @param inputBytes  - the size of the input file.
+	 * @param outputBytes - the size of the output written.
+	 * @param nanos       - how long it took.
+	 * @param allocated   - the heap memory allocated for it, see
+	 *                    {@link #allocatedBytes()}.
+	 */
+	public void fileProcessed(String job, long inputBytes, long outputBytes, long nanos, long allocated) {
+		JobStats stats = statsOf(job);
+		stats.filesProcessed.increment();
+		stats.bytesRead.add(inputBytes);
+		stats.bytesWritten.add(outputBytes);
+		stats.bytesAllocated.add(allocated);
+		stats.fileTimes.record(nanos);
+		for (FileLatencies.Stage stage : FileLatencies.Stage.values()) {
+			stats.stageTimes[stage.ordinal()].record(FileLatencies.stageNanos(stage));
+		}
+	}
+
+	/**
+	 * @return - the heap memory allocated by the current thread so far, in bytes,
+	 *         or 0 if the JVM does not measure it.
+	 */
+	public static long allocatedBytes() {
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+				&& threads.isThreadAllocatedMemoryEnabled()) {
+			return threads.getCurrentThreadAllocatedBytes();
+		}
+		return 0;
+	}
+
+	/**
+	 * Records a file that failed.
+	 *
+	 * @param job - the kind of job, e.g. "encrypted".
+	 */
+	public void fileFailed(String job) {
+		statsOf(job).filesFailed.increment();
+	}
+
+	/**
+	 * Records a group of files forced to disk.
+	 *
+	 * @param nanos - how long forcing them took.
+	 */
+	public void synced(long nanos) {
+		syncTimes.record(nanos);
+	}
+
+	/**
+	 * Records a lookup of the compiled key.
+	 *
+	 * @param hit - true if the compiled key was reused.
+	 */
+	public void keyCacheLookup(boolean hit) {
+		(hit ? keyCacheHits : keyCacheMisses).increment();
+	}
+
+	/**
+	 * Records a file hashed for deduplication.
+	 *
+	 * @param duplicate - true if its content had been seen before.
+	 */
+	public void dedupLookup(boolean duplicate) {
+		dedupHashed.increment();
+		if (duplicate) {
+			dedupDuplicates.increment();
+		}
+	}
+
+	/**
+	 * @param change - +1 when a worker starts a file, -1 when it finishes.
+	 */
+	public void workerActive(int change) {
+		activeWorkers.addAndGet(change);
+	}
+
+	/**
+	 * @param change - the number of files added to (+) or taken from (-) the
+	 *               queues of running jobs.
+	 */
+	public void queued(int change) {
+		queuedFiles.addAndGet(change);
+	}
+
+	/**
+	 * Makes a governor the one tuned through the MemoryBudgetMB attribute.
+	 *
+	 * @param memoryGovernor - the governor of the job being started.
+	 */
+	public void useMemoryGovernor(MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+	}
+
+	/**
+	 * @param jobThreads - the thread count a job was given.
+	 * @return - the thread count set through JMX, or the job's own if none was
+	 *         set.
+	 */
+	public int threadsOr(int jobThreads) {
+		int tuned = threads;
+		return tuned > 0 ? tuned : jobThreads;
+	}
+
+	/**
+	 * @return - the counters of each kind of job that has run.
+	 */
+	Map<String, JobStats> getJobStats() {
+		return jobs;
+	}
+
+	/**
+	 * @return - the times taken to force groups of files to disk.
+	 */
+	Histogram getSyncTimes() {
+		return syncTimes;
+	}
+
+	@Override
+	public long getFilesProcessed() {
+		return sum(stats -> stats.filesProcessed);
+	}
+
+	@Override
+	public long getFilesFailed() {
+		return sum(stats -> stats.filesFailed);
+	}
+
+	@Override
+	public long getBytesRead() {
+		return sum(stats -> stats.bytesRead);
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return sum(stats -> stats.bytesWritten);
+	}
+
+	@Override
+	public double getMeanProcessMillis() {
+		long files = sum(stats -> stats.fileTimes.count);
+		return files == 0 ? 0 : sum(stats -> stats.fileTimes.sumNanos) / 1e6 / files;
+	}
+
+	@Override
+	public double getMeanReadMillis() {
+		return meanStageMillis(FileLatencies.Stage.READ);
+	}
+
+	@Override
+	public double getMeanCipherMillis() {
+		return meanStageMillis(FileLatencies.Stage.CIPHER);
+	}
+
+	@Override
+	public double getMeanWriteMillis() {
+		return meanStageMillis(FileLatencies.Stage.WRITE);
+	}
+
+	@Override
+	public double getMeanSyncMillis() {
+		return syncTimes.meanMillis();
+	}
+
+	@Override
+	public int getActiveWorkers() {
+		return activeWorkers.get();
+	}
+
+	@Override
+	public int getQueuedFiles() {
+		return queuedFiles.get();
+	}
+
+	@Override
+	public double getKeyCacheHitRate() {
+		long hits = keyCacheHits.sum();
+		long lookups = hits + keyCacheMisses.sum();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public double getDedupHitRate() {
+		long hashed = dedupHashed.sum();
+		return hashed == 0 ? 0 : (double) dedupDuplicates.sum() / hashed;
+	}
+
+	@Override
+	public long getMemoryInUse() {
+		MemoryGovernor governor = memoryGovernor;
+		return governor == null ? 0 : governor.getInUse();
+	}
+
+	@Override
+	public int getThreads() {
+		return threads;
+	}
+
+	@Override
+	public void setThreads(int threads) {
+		if (threads < 0) {
+			throw new IllegalArgumentException("The number of threads cannot be negative");
+		}
+		this.threads = threads;
+	}
+
+	@Override
+	public int getBufferBytes() {
+		return bufferBytes;
+	}
+
+	@Override
+	public void setBufferBytes(int bufferBytes) {
+		if (bufferBytes < 1024) {
+			throw new IllegalArgumentException("The buffer must be at least 1024 bytes");
+		}
+		this.bufferBytes = bufferBytes;
+	}
+
+	@Override
+	public long getMemoryBudgetMB() {
+		MemoryGovernor governor = memoryGovernor;
+		return governor == null ? 0 : governor.getBudget() / (1024 * 1024);
+	}
+
+	@Override
+	public void setMemoryBudgetMB(long memoryBudgetMB) {
+		MemoryGovernor governor = memoryGovernor;
+		if (governor == null) {
+			throw new IllegalStateException("No job with a memory budget has been started");
+		}
+		governor.setBudget(memoryBudgetMB * 1024 * 1024);
+	}
+
+	@Override
+	public void resetCounters() {
+		for (JobStats stats : jobs.values()) {
+			for (LongAdder counter : new LongAdder[] { stats.filesProcessed, stats.filesFailed, stats.bytesRead,
+					stats.bytesWritten, stats.bytesAllocated }) {
+				counter.reset();
+			}
+			stats.fileTimes.reset();
+			for (Histogram stageTimes : stats.stageTimes) {
+				stageTimes.reset();
+			}
+		}
+		syncTimes.reset();
+		for (LongAdder counter : new LongAdder[] { keyCacheHits, keyCacheMisses, dedupHashed, dedupDuplicates }) {
+			counter.reset();
+		}
+	}
+
+	private JobStats statsOf(String job) {
+		return jobs.computeIfAbsent(job, name -> new JobStats());
+	}
+
+	/*
+	 * The mean time files spent in one stage, over every kind of job.
+	 */
+	private double meanStageMillis(FileLatencies.Stage stage) {
+		long files = sum(stats -> stats.stageTimes[stage.ordinal()].count);
+		return files == 0 ? 0 : sum(stats -> stats.stageTimes[stage.ordinal()].sumNanos) / 1e6 / files;
+	}
+
+	/*
+	 * The total of one counter over every kind of job.
+	 */
+	private long sum(Function<JobStats, LongAdder> counter) {
+		long total = 0;
+		for (JobStats stats : jobs.values()) {
+			total += counter.apply(stats).sum();
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,52 @@
+package ie.atu.sw;
+
+/**
+ * The management interface of {@link Metrics}, shown in JConsole or jcmd under
+ * "ie.atu.sw:type=Metrics". The getters are live counters; the attributes with
+ * a setter can be changed while a batch is running.
+ */
+public interface MetricsMBean {
+
+	long getFilesProcessed();
+
+	long getFilesFailed();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	double getMeanProcessMillis();
+
+	double getMeanReadMillis();
+
+	double getMeanCipherMillis();
+
+	double getMeanWriteMillis();
+
+	double getMeanSyncMillis();
+
+	int getActiveWorkers();
+
+	int getQueuedFiles();
+
+	double getKeyCacheHitRate();
+
+	double getDedupHitRate();
+
+	long getMemoryInUse();
+
+	int getThreads();
+
+	void setThreads(int threads);
+
+	int getBufferBytes();
+
+	void setBufferBytes(int bufferBytes);
+
+	long getMemoryBudgetMB();
+
+	void setMemoryBudgetMB(long memoryBudgetMB);
+
+	void resetCounters();
+
+}
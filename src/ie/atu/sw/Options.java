@@ -1,5 +1,6 @@
 package ie.atu.sw;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.InputMismatchException;
 import java.util.Scanner;
@@ -10,6 +11,8 @@ import java.util.Scanner;
  *
  */
 public class Options {
+	private static final int RECENT_RUNS = 10; // Runs listed by View Run History.
+
 	private Scanner scanner = new Scanner(System.in);
 	private InputDirectory inputDirectory;
 	private OutputDirectory outputDirectory;
@@ -56,11 +59,12 @@ public class Options {
 		System.out.println("");
 		System.out.println(" 1. View Settings");
 		System.out.println(" 2. Clear Your Settings");
-		System.out.println(" 3. Return to Main Menu");
+		System.out.println(" 3. View Run History");
+		System.out.println(" 4. Return to Main Menu");
 	}
 
 	/**
-	 * Handles user input to select an option (1-3) and then runs the corresponding
+	 * Handles user input to select an option (1-4) and then runs the corresponding
 	 * methods under the option they picked.
 	 */
 	private void userOptionsChoice() {
@@ -82,13 +86,18 @@ public class Options {
 					break;
 				}
 				case 3 -> {
+					printRunHistory();
+					returnToOptionsMenu();
+					break;
+				}
+				case 4 -> {
 					return;
 				}
-				default -> System.out.println("Oops!! Invalid choice! Please select 1-3.");
+				default -> System.out.println("Oops!! Invalid choice! Please select 1-4.");
 				}
 			}
 		} catch (InputMismatchException e) {
-			System.out.println("Oops!! Invalid input! Please select a valid number: 1-3");
+			System.out.println("Oops!! Invalid input! Please select a valid number: 1-4");
 			scanner.nextLine();
 			userOptionsChoice();
 		} catch (Exception e) {
@@ -124,6 +133,19 @@ public class Options {
 		}
 	}
 
+	/**
+	 * Prints the recent encryption and decryption runs and how the throughput of
+	 * each kind of run has changed, flagging runs slower than the runs before them.
+	 */
+	private void printRunHistory() {
+		RunHistory history = new RunHistory(RunHistory.defaultFile());
+		try {
+			history.report(RECENT_RUNS).forEach(System.out::println);
+		} catch (IOException e) {
+			System.out.println("Could not read the run history: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * This methods clears all settings for the user.
 	 */
@@ -4,7 +4,10 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * This class parses all files into a specified directory - its main function is
@@ -21,35 +24,41 @@ public class Parser {
 	 * @throws IOException - if there's an error accessing the directory/ files.
 	 */
 	public String[] parseFilesInDirectory(String directoryPath) throws IOException {
-		File folder = new File(directoryPath);
-		File[] listOfFiles = folder.listFiles();
+		File[] listOfFiles = listTextFiles(directoryPath);
 
-		if (listOfFiles == null) {
-			throw new IOException("Provided path is null");
-		}
+		String[] parsedFiles = new String[listOfFiles.length];
+		int i = 0;
 
-		int textFileCount = 0;
 		for (File file : listOfFiles) {
-			if (file.isFile() && file.getName().endsWith(".txt")) {
-				textFileCount++;
+			try {
+				parsedFiles[i] = parse(file.getPath());
+				i++;
+			} catch (Exception e) {
+				System.out.println("Error! Cannot read file " + file.getName());
+				e.printStackTrace();
 			}
 		}
+		return parsedFiles;
+	}
 
-		String[] parsedFiles = new String[textFileCount];
-		int i = 0;
+	/**
+	 * Lists the text files in a specific directory, sorted by name. The order is
+	 * stable between runs, so a file always gets the same number in the output
+	 * directory no matter what order the file system returns them in.
+	 * 
+	 * @param directoryPath - path of directory containing the text files.
+	 * @return - the text files in the directory, sorted by name.
+	 * @throws IOException - if there's an error accessing the directory.
+	 */
+	public File[] listTextFiles(String directoryPath) throws IOException {
+		File folder = new File(directoryPath);
+		File[] listOfFiles = folder.listFiles(file -> file.isFile() && file.getName().endsWith(".txt"));
 
-		for (File file : listOfFiles) {
-			if (file.isFile() && file.getName().endsWith(".txt")) {
-				try {
-					parsedFiles[i] = parse(file.getPath());
-					i++;
-				} catch (Exception e) {
-					System.out.println("Error! Cannot read file " + listOfFiles[i].getName());
-					e.printStackTrace();
-				}
-			}
+		if (listOfFiles == null) {
+			throw new IOException("Provided path is null");
 		}
-		return parsedFiles;
+		Arrays.sort(listOfFiles, Comparator.comparing(File::getName));
+		return listOfFiles;
 	}
 
 	/**
@@ -74,4 +83,25 @@ public class Parser {
 		return strippedText.toString();
 	}
 
+	/**
+	 * Reads a stream to its end and keeps only its letters, in uppercase, the same
+	 * as {@link #parse} keeps from a file.
+	 * 
+	 * @param in - the text to parse; it is not closed.
+	 * @return - the letters as ASCII bytes.
+	 * @throws IOException - if the stream cannot be read.
+	 */
+	public byte[] parseLetters(InputStream in) throws IOException {
+		byte[] text = in.readAllBytes();
+		int count = 0;
+		for (byte character : text) {
+			if (character >= 'a' && character <= 'z') {
+				text[count++] = (byte) (character - ('a' - 'A'));
+			} else if (character >= 'A' && character <= 'Z') {
+				text[count++] = character;
+			}
+		}
+		return Arrays.copyOf(text, count);
+	}
+
 }
@@ -0,0 +1,96 @@
+package ie.atu.sw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encrypts standard input to standard output, or decrypts it back, so the
+ * application can sit in the middle of a pipeline such as
+ * "tar c docs | java ie.atu.sw.Runner encrypt -k KEY | ssh host ...". Nothing
+ * is written to disk. The block format is used, because the original format
+ * needs the length of the whole text before the first column can be written,
+ * while the block format is written block by block and puts the length in a
+ * trailer at the end. Line-oriented input can use the record format instead,
+ * which is written record by record.
+ */
+public class PipeMode {
+	private static final int BUFFER_BYTES = 4 * 1024 * 1024; // The size of a pipe batch in the block format.
+
+	private KeyPlan plan;
+
+	/**
+	 * Constructor - a new pipe for the given compiled key.
+	 *
+	 * @param plan - the compiled key.
+	 */
+	public PipeMode(KeyPlan plan) {
+		this.plan = plan;
+	}
+
+	/**
+	 * Encrypts standard input to standard output until the input ends.
+	 *
+	 * @param blockSize - plaintext characters per block.
+	 * @param checksums - true to add checksums to the trailer.
+	 * @throws IOException - if the pipes cannot be read or written.
+	 */
+	public void encrypt(int blockSize, boolean checksums) throws IOException {
+		OutputStream out = standardOutput();
+		BlockFormat.encrypt(standardInput(), out, plan, blockSize, checksums);
+		out.flush();
+	}
+
+	/**
+	 * Encrypts standard input to standard output in the record format, one
+	 * record per line, until the input ends.
+	 *
+	 * @throws IOException - if the pipes cannot be read or written.
+	 */
+	public void encryptRecords() throws IOException {
+		OutputStream out = standardOutput();
+		RecordFormat.encrypt(standardInput(), out, plan);
+		out.flush();
+	}
+
+	/**
+	 * Decrypts standard input, which must be in the block format or the record
+	 * format, to standard output.
+	 *
+	 * @throws IOException - if the pipes cannot be read or written, or the input
+	 *                     is not a valid file in either format.
+	 */
+	public void decrypt() throws IOException {
+		OutputStream out = standardOutput();
+		InputStream in = standardInput();
+		if (RecordFormat.isRecords(in)) {
+			RecordFormat.decrypt(in, out, plan);
+		} else {
+			BlockFormat.decrypt(in, out, plan);
+		}
+		out.flush();
+	}
+
+	/*
+	 * Standard input read straight from its file descriptor, without the extra
+	 * locking and copying of System.in.
+	 */
+	private static InputStream standardInput() {
+		return new BufferedInputStream(new FileInputStream(FileDescriptor.in), BUFFER_BYTES);
+	}
+
+	/*
+	 * Standard output written straight to its file descriptor. System.out is a
+	 * PrintStream that locks and checks for errors on every write, and anything
+	 * else printed to it would end up in the middle of the ciphertext.
+	 */
+	private static OutputStream standardOutput() {
+		return new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER_BYTES);
+	}
+
+}
@@ -0,0 +1,193 @@
+package ie.atu.sw;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes the {@link Metrics} in the Prometheus text format, so encryption and
+ * decryption jobs can be put on the same dashboards and alerts as the rest of a
+ * pipeline. The metrics can be served over HTTP at /metrics for Prometheus to
+ * scrape, and/or written to a file every few seconds for the node exporter's
+ * textfile collector. The file is written under a temporary name and renamed,
+ * so the collector never reads half a file, and it is written one last time
+ * when the exporter is closed, so a short job still leaves its final numbers.
+ */
+public class PrometheusExporter implements Closeable {
+	private static final long WRITE_INTERVAL_SECONDS = 10;
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private File textFile;
+	private PrintStream err;
+	private HttpServer server;
+	private ScheduledExecutorService writer;
+
+	/**
+	 * Constructor - starts exporting the metrics of this process.
+	 *
+	 * @param textFile - the file to keep rewriting, or null for none.
+	 * @param port     - the port to serve /metrics on, or 0 for none.
+	 * @param err      - receives errors from writing the file.
+	 * @throws IOException - if the port cannot be opened.
+	 */
+	public PrometheusExporter(File textFile, int port, PrintStream err) throws IOException {
+		this.textFile = textFile;
+		this.err = err;
+		if (port > 0) {
+			server = HttpServer.create(new InetSocketAddress(port), 0);
+			server.createContext("/metrics", exchange -> {
+				byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			server.start();
+		}
+		if (textFile != null) {
+			writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "metrics-writer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			writer.scheduleAtFixedRate(this::writeTextFile, 0, WRITE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stops serving the metrics, after writing the file one last time.
+	 */
+	@Override
+	public void close() {
+		if (writer != null) {
+			writer.shutdownNow();
+			writeTextFile();
+		}
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * @return - the current metrics in the Prometheus text format.
+	 */
+	public static String scrape() {
+		Metrics metrics = Metrics.get();
+		StringBuilder text = new StringBuilder();
+		Map<String, Metrics.JobStats> jobs = metrics.getJobStats();
+
+		header(text, "adfgvx_files_processed_total", "counter", "Files processed successfully.");
+		jobs.forEach((job, stats) -> sample(text, "adfgvx_files_processed_total", job, stats.filesProcessed.sum()));
+		header(text, "adfgvx_files_failed_total", "counter", "Files that failed.");
+		jobs.forEach((job, stats) -> sample(text, "adfgvx_files_failed_total", job, stats.filesFailed.sum()));
+		header(text, "adfgvx_read_bytes_total", "counter", "Bytes of input processed.");
+		jobs.forEach((job, stats) -> sample(text, "adfgvx_read_bytes_total", job, stats.bytesRead.sum()));
+		header(text, "adfgvx_written_bytes_total", "counter", "Bytes of output written.");
+		jobs.forEach((job, stats) -> sample(text, "adfgvx_written_bytes_total", job, stats.bytesWritten.sum()));
+		header(text, "adfgvx_allocated_bytes_total", "counter", "Heap bytes allocated by the worker threads.");
+		jobs.forEach((job, stats) -> sample(text, "adfgvx_allocated_bytes_total", job, stats.bytesAllocated.sum()));
+
+		header(text, "adfgvx_file_seconds", "histogram", "Time to process one file.");
+		jobs.forEach((job, stats) -> histogram(text, "adfgvx_file_seconds", "{operation=\"" + job + "\"",
+				stats.fileTimes));
+		header(text, "adfgvx_stage_seconds", "histogram", "Time one file spent reading, in the cipher or writing.");
+		jobs.forEach((job, stats) -> {
+			for (FileLatencies.Stage stage : FileLatencies.Stage.values()) {
+				histogram(text, "adfgvx_stage_seconds", "{operation=\"" + job + "\",stage=\""
+						+ stage.name().toLowerCase(Locale.ROOT) + "\"", stats.stageTimes[stage.ordinal()]);
+			}
+		});
+		header(text, "adfgvx_sync_seconds", "histogram", "Time to force a group of files to disk.");
+		histogram(text, "adfgvx_sync_seconds", "{", metrics.getSyncTimes());
+
+		header(text, "adfgvx_active_workers", "gauge", "Files being worked on now.");
+		text.append("adfgvx_active_workers ").append(metrics.getActiveWorkers()).append('\n');
+		header(text, "adfgvx_queued_files", "gauge", "Files waiting for a worker.");
+		text.append("adfgvx_queued_files ").append(metrics.getQueuedFiles()).append('\n');
+		header(text, "adfgvx_memory_reserved_bytes", "gauge", "Memory reserved by the memory governor.");
+		text.append("adfgvx_memory_reserved_bytes ").append(metrics.getMemoryInUse()).append('\n');
+
+		header(text, "jvm_gc_collections_total", "counter", "Garbage collections.");
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			text.append("jvm_gc_collections_total{gc=\"").append(collector.getName()).append("\"} ")
+					.append(Math.max(0, collector.getCollectionCount())).append('\n');
+		}
+		header(text, "jvm_gc_seconds_total", "counter", "Time spent in garbage collection.");
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			text.append("jvm_gc_seconds_total{gc=\"").append(collector.getName()).append("\"} ")
+					.append(seconds(Math.max(0, collector.getCollectionTime()) * 1_000_000)).append('\n');
+		}
+		header(text, "jvm_heap_used_bytes", "gauge", "Heap memory in use.");
+		text.append("jvm_heap_used_bytes ")
+				.append(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()).append('\n');
+		return text.toString();
+	}
+
+	/*
+	 * Rewrites the text file with the current metrics. Errors are reported but do
+	 * not stop the job.
+	 */
+	private synchronized void writeTextFile() {
+		File temporaryFile = new File(textFile.getAbsoluteFile().getParentFile(), "." + textFile.getName() + ".tmp");
+		try {
+			Files.writeString(temporaryFile.toPath(), scrape());
+			Files.move(temporaryFile.toPath(), textFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			err.println("Error! Could not write the metrics to " + textFile + ": " + e.getMessage());
+		}
+	}
+
+	private static void header(StringBuilder text, String name, String type, String help) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, String job, long value) {
+		text.append(name).append("{operation=\"").append(job).append("\"} ").append(value).append('\n');
+	}
+
+	/*
+	 * Writes a histogram as cumulative buckets, a sum and a count. The labels are
+	 * given open, e.g. {operation="encrypted" or just {, so "le" can be added.
+	 */
+	private static void histogram(StringBuilder text, String name, String labels, Metrics.Histogram histogram) {
+		String separator = labels.equals("{") ? "" : ",";
+		long cumulative = 0;
+		for (int i = 0; i < histogram.buckets.length; i++) {
+			cumulative += histogram.buckets[i].sum();
+			String bound = i < Metrics.Histogram.BUCKET_SECONDS.length
+					? BigDecimal.valueOf(Metrics.Histogram.BUCKET_SECONDS[i]).stripTrailingZeros().toPlainString()
+					: "+Inf";
+			text.append(name).append("_bucket").append(labels).append(separator).append("le=\"").append(bound)
+					.append("\"} ").append(cumulative).append('\n');
+		}
+		String closed = labels.equals("{") ? "" : labels + "}";
+		text.append(name).append("_sum").append(closed).append(' ').append(seconds(histogram.sumNanos.sum()))
+				.append('\n');
+		// The count is the +Inf bucket, so the two agree while files are being recorded.
+		text.append(name).append("_count").append(closed).append(' ').append(cumulative).append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+
+}
@@ -0,0 +1,487 @@
+package ie.atu.sw;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * The record format for line-oriented files, e.g. CSV files and logs. Each line
+ * of the plaintext is a record, and each record is transposed on its own, like
+ * a block of the block format that is exactly one line long. A file looks like:
+ *
+ * <pre>
+ * #ADFGVX-RECORDS 1
+ * ...ciphertext of record 0...
+ * ...ciphertext of record 1...
+ * </pre>
+ *
+ * A record keeps the letters of its line, in uppercase, the same as
+ * {@link Parser#parse} keeps from a file. A line without letters is an empty
+ * record, so record numbers stay the line numbers of the plaintext. The
+ * records are read a batch at a time, and the records in each batch are
+ * encrypted or decrypted in parallel.
+ *
+ * A record can be read without decrypting the rest of the file: an index
+ * beside the file (its name + ".idx") holds where each record starts, 8 bytes
+ * per record, so record n is found by reading the index at 8n. The index is
+ * only a cache of the file. It is built the first time a record is read, and
+ * built again whenever it does not match the file. New records are appended to
+ * the end of the file and of its index, so the records before them are never
+ * rewritten.
+ */
+public class RecordFormat {
+	public static final String INDEX_SUFFIX = ".idx";
+	private static final byte[] HEADER = "#ADFGVX-RECORDS 1\n".getBytes(StandardCharsets.US_ASCII);
+	private static final int OFFSET_BYTES = Long.BYTES; 		// Bytes per record in the index.
+	private static final int SCAN_BUFFER_BYTES = 1024 * 1024;
+
+	/**
+	 * Checks if a file is in the record format by looking at its header.
+	 *
+	 * @param file - the file to check.
+	 * @return - true if the file starts with the record format header.
+	 * @throws IOException - if the file cannot be read.
+	 */
+	public static boolean isRecords(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			return Arrays.equals(in.readNBytes(HEADER.length), HEADER);
+		}
+	}
+
+	/**
+	 * Checks if a stream is in the record format, without reading past its
+	 * header.
+	 *
+	 * @param in - the stream to check; it must support mark.
+	 * @return - true if the stream starts with the record format header.
+	 * @throws IOException - if the stream cannot be read.
+	 */
+	public static boolean isRecords(InputStream in) throws IOException {
+		in.mark(HEADER.length);
+		byte[] start = in.readNBytes(HEADER.length);
+		in.reset();
+		return Arrays.equals(start, HEADER);
+	}
+
+	/**
+	 * Encrypts a text stream into the record format, one record per line.
+	 *
+	 * @param plaintext - the text to encrypt.
+	 * @param out       - receives the encrypted file.
+	 * @param plan      - the compiled key.
+	 * @return - the number of records encrypted.
+	 * @throws IOException - if the streams cannot be read or written.
+	 */
+	public static long encrypt(InputStream plaintext, OutputStream out, KeyPlan plan) throws IOException {
+		out.write(HEADER);
+		return transform(plaintext, out, plan, true, HEADER.length, null);
+	}
+
+	/**
+	 * Decrypts a stream in the record format into one line of plaintext per
+	 * record.
+	 *
+	 * @param ciphertext - the encrypted file.
+	 * @param out        - receives the decrypted text.
+	 * @param plan       - the compiled key.
+	 * @return - the number of records decrypted.
+	 * @throws IOException - if the streams cannot be read or written, or the file
+	 *                     is not valid.
+	 */
+	public static long decrypt(InputStream ciphertext, OutputStream out, KeyPlan plan) throws IOException {
+		if (!Arrays.equals(ciphertext.readNBytes(HEADER.length), HEADER)) {
+			throw new IOException("The file is not in the record format");
+		}
+		return transform(ciphertext, out, plan, false, 0, null);
+	}
+
+	/**
+	 * Checks a file in the record format without the key: every record must be
+	 * an even number of ADFGVX letters, and the last one must be complete. The
+	 * format has no checksums, as records are appended.
+	 *
+	 * @param ciphertext - the encrypted file.
+	 * @throws IOException - if the file cannot be read, or is truncated or corrupt.
+	 */
+	public static void verify(InputStream ciphertext) throws IOException {
+		if (!Arrays.equals(ciphertext.readNBytes(HEADER.length), HEADER)) {
+			throw new IOException("The file is not in the record format");
+		}
+		byte[] buffer = new byte[SCAN_BUFFER_BYTES];
+		long recordLength = 0;
+		int count;
+		while ((count = ciphertext.read(buffer)) > 0) {
+			for (int i = 0; i < count; i++) {
+				if (buffer[i] == '\n') {
+					if (recordLength % 2 != 0) {
+						throw new IOException("The file is corrupt: a record has an odd number of letters");
+					}
+					recordLength = 0;
+				} else if (!isAdfgvx(buffer[i])) {
+					throw new IOException("The file is corrupt: it has a character that is not ADFGVX");
+				} else {
+					recordLength++;
+				}
+			}
+		}
+		if (recordLength > 0) {
+			throw new IOException("The file is truncated: its last record is incomplete");
+		}
+	}
+
+	/**
+	 * Decrypts some of the records of a file, reading only those records and
+	 * their entries in the index.
+	 *
+	 * @param file  - the encrypted file.
+	 * @param plan  - the compiled key.
+	 * @param first - the number of the first record, counting from 0.
+	 * @param count - the number of records to decrypt.
+	 * @return - the decrypted records; fewer than count if they run past the last
+	 *         record.
+	 * @throws IOException - if the file cannot be read or is not valid.
+	 */
+	public static List<String> readRecords(File file, KeyPlan plan, long first, int count) throws IOException {
+		if (first < 0 || count < 0) {
+			throw new IllegalArgumentException("The record number and count cannot be negative");
+		}
+		try (FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			data.lock(0, Long.MAX_VALUE, true); 	// Shared with other readers, released on close.
+			checkHeader(data);
+			File indexFile = indexFor(file);
+			if (!indexMatches(indexFile, file, data)) {
+				buildIndex(data, indexFile);
+			}
+			try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+				long records = index.size() / OFFSET_BYTES;
+				List<String> result = new ArrayList<>();
+				if (first >= records) {
+					return result;
+				}
+				long last = Math.min(records, first + count);
+				long start = readLong(index, first * OFFSET_BYTES);
+				long end = last < records ? readLong(index, last * OFFSET_BYTES) : data.size();
+
+				ByteBuffer ciphertext = ByteBuffer.allocate(Math.toIntExact(end - start));
+				readFully(data, ciphertext, start);
+				ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+				transform(new ByteArrayInputStream(ciphertext.array()), plaintext, plan, false, 0, null);
+				String[] lines = plaintext.toString(StandardCharsets.US_ASCII).split("\n", -1);
+				result.addAll(Arrays.asList(lines).subList(0, (int) (last - first)));
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Encrypts the lines of a text stream and appends them to a file as new
+	 * records, and their starts to its index. The file is created if it does not
+	 * exist. It is locked while the records are appended, so processes appending
+	 * to the same file take turns.
+	 *
+	 * @param file      - the encrypted file.
+	 * @param plaintext - the text to append, one record per line.
+	 * @param plan      - the compiled key.
+	 * @return - the number of records appended.
+	 * @throws IOException - if the file cannot be read or written, or is not in
+	 *                     the record format.
+	 */
+	public static long append(File file, InputStream plaintext, KeyPlan plan) throws IOException {
+		try (FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			data.lock(); 	// Released when the file is closed.
+			if (data.size() == 0) {
+				data.write(ByteBuffer.wrap(HEADER), 0);
+			}
+			checkHeader(data);
+			File indexFile = indexFor(file);
+			if (!indexMatches(indexFile, file, data)) {
+				buildIndex(data, indexFile);
+			}
+
+			// The records go first, then their starts, so an index that is behind after a
+			// crash no longer matches the file and is built again.
+			data.position(data.size());
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(data));
+			ByteArrayOutputStream starts = new ByteArrayOutputStream();
+			DataOutputStream startOut = new DataOutputStream(starts);
+			long records = transform(plaintext, out, plan, true, data.size(), start -> {
+				try {
+					startOut.writeLong(start);
+				} catch (IOException e) {
+					throw new IllegalStateException(e); 	// Cannot happen when writing to memory.
+				}
+			});
+			out.flush();
+			Files.write(indexFile.toPath(), starts.toByteArray(), StandardOpenOption.APPEND);
+			return records;
+		}
+	}
+
+	/**
+	 * @param file - an encrypted file.
+	 * @return - the index of its records.
+	 */
+	public static File indexFor(File file) {
+		return new File(file.getParentFile(), file.getName() + INDEX_SUFFIX);
+	}
+
+	/*
+	 * Reads lines a batch at a time, and encrypts or decrypts each line as one
+	 * record, in parallel. A line longer than the buffer makes the buffer grow.
+	 * Tells the consumer, if there is one, where each output record starts,
+	 * counting from the given position.
+	 */
+	private static long transform(InputStream in, OutputStream out, KeyPlan plan, boolean encrypting, long position,
+			LongConsumer recordStart) throws IOException {
+		byte[] buffer = new byte[Math.max(1, Metrics.get().getBufferBytes())];
+		int filled = 0;
+		long records = 0;
+		long lap = System.nanoTime();
+
+		while (true) {
+			filled += in.readNBytes(buffer, filled, buffer.length - filled);
+			boolean ended = filled < buffer.length;
+			int lastBreak = lastIndexOf(buffer, filled, (byte) '\n');
+			if (lastBreak < 0 && !ended) {
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+				continue;
+			}
+			lap = FileLatencies.lap(FileLatencies.Stage.READ, lap);
+
+			// The whole lines in the buffer, and at the end a last line without a break.
+			int used = ended ? filled : lastBreak + 1;
+			byte[] batch = buffer;
+			int[] starts = lineStarts(batch, used);
+			int lines = starts.length - 1;
+			int[] lengths = new int[lines];
+			IntStream.range(0, lines).parallel().forEach(line -> {
+				int end = starts[line + 1] > starts[line] && batch[starts[line + 1] - 1] == '\n'
+						? starts[line + 1] - 1
+						: starts[line + 1];
+				lengths[line] = encrypting ? keepLetters(batch, starts[line], end) : end - starts[line];
+			});
+
+			int[] outputStarts = new int[lines + 1];
+			for (int line = 0; line < lines; line++) {
+				if (!encrypting && lengths[line] % 2 != 0) {
+					throw new IOException("The file is corrupt: record " + (records + line)
+							+ " has an odd number of letters");
+				}
+				outputStarts[line + 1] = outputStarts[line] + (encrypting ? 2 * lengths[line] : lengths[line] / 2) + 1;
+			}
+			byte[] output = new byte[outputStarts[lines]];
+			try {
+				IntStream.range(0, lines).parallel().forEach(line -> {
+					if (encrypting) {
+						plan.encryptBlock(batch, starts[line], lengths[line], output, outputStarts[line]);
+					} else {
+						plan.decryptBlock(batch, starts[line], lengths[line], output, outputStarts[line]);
+					}
+					output[outputStarts[line + 1] - 1] = '\n';
+				});
+			} catch (IllegalArgumentException e) {
+				throw new IOException("The file is corrupt: " + e.getMessage());
+			}
+			lap = FileLatencies.lap(FileLatencies.Stage.CIPHER, lap);
+
+			out.write(output);
+			for (int line = 0; recordStart != null && line < lines; line++) {
+				recordStart.accept(position + outputStarts[line]);
+			}
+			lap = FileLatencies.lap(FileLatencies.Stage.WRITE, lap);
+			position += output.length;
+			records += lines;
+
+			System.arraycopy(buffer, used, buffer, 0, filled - used);
+			filled -= used;
+			if (ended) {
+				return records;
+			}
+		}
+	}
+
+	/*
+	 * Where each line in the first count bytes starts, and after the last one
+	 * where it ends.
+	 */
+	private static int[] lineStarts(byte[] bytes, int count) {
+		int lines = 0;
+		for (int i = 0; i < count; i++) {
+			if (bytes[i] == '\n') {
+				lines++;
+			}
+		}
+		if (count > 0 && bytes[count - 1] != '\n') {
+			lines++;
+		}
+		int[] starts = new int[lines + 1];
+		int line = 1;
+		for (int i = 0; i < count; i++) {
+			if (bytes[i] == '\n') {
+				starts[line++] = i + 1;
+			}
+		}
+		starts[lines] = count;
+		return starts;
+	}
+
+	/*
+	 * Keeps the letters of a line, in uppercase, at its start, the same as
+	 * Parser.parseLetters, and returns how many there are.
+	 */
+	private static int keepLetters(byte[] bytes, int from, int to) {
+		int count = from;
+		for (int i = from; i < to; i++) {
+			byte character = bytes[i];
+			if (character >= 'a' && character <= 'z') {
+				bytes[count++] = (byte) (character - ('a' - 'A'));
+			} else if (character >= 'A' && character <= 'Z') {
+				bytes[count++] = character;
+			}
+		}
+		return count - from;
+	}
+
+	/*
+	 * Checks that a file starts with the record format header.
+	 */
+	private static void checkHeader(FileChannel data) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER.length);
+		if (data.size() < HEADER.length) {
+			throw new IOException("The file is not in the record format");
+		}
+		readFully(data, header, 0);
+		if (!Arrays.equals(header.array(), HEADER)) {
+			throw new IOException("The file is not in the record format");
+		}
+	}
+
+	/*
+	 * Checks that an index is at least as new as its file, starts at the first
+	 * record, and ends with a record that runs to the end of the file as exactly
+	 * one line.
+	 */
+	private static boolean indexMatches(File indexFile, File file, FileChannel data) throws IOException {
+		if (!indexFile.isFile() || indexFile.length() % OFFSET_BYTES != 0
+				|| indexFile.lastModified() < file.lastModified()) {
+			return false;
+		}
+		try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			if (index.size() == 0) {
+				return data.size() == HEADER.length;
+			}
+			long last = readLong(index, index.size() - OFFSET_BYTES);
+			if (readLong(index, 0) != HEADER.length || last < HEADER.length || last >= data.size()) {
+				return false;
+			}
+			if (last > HEADER.length && readByte(data, last - 1) != '\n') {
+				return false;
+			}
+			return nextLineBreak(data, last) == data.size() - 1;
+		}
+	}
+
+	/*
+	 * Writes the start of every record in a file to a new index, and puts it in
+	 * place of the old one in one step. Readers building it at the same time each
+	 * write their own temporary file.
+	 */
+	private static void buildIndex(FileChannel data, File indexFile) throws IOException {
+		Path temporaryFile = Files.createTempFile(indexFile.getAbsoluteFile().getParentFile().toPath(),
+				"." + indexFile.getName(), ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+			long start = HEADER.length;
+			while (start < data.size()) {
+				long lineBreak = nextLineBreak(data, start);
+				if (lineBreak < 0) {
+					throw new IOException("The file is truncated: its last record is incomplete");
+				}
+				out.writeLong(start);
+				start = lineBreak + 1;
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(temporaryFile);
+			throw e;
+		}
+		Files.move(temporaryFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Finds the first line break at or after a position in a file, or -1.
+	 */
+	private static long nextLineBreak(FileChannel data, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_BYTES);
+		while (position < data.size()) {
+			buffer.clear();
+			int count = data.read(buffer, position);
+			for (int i = 0; i < count; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i;
+				}
+			}
+			position += count;
+		}
+		return -1;
+	}
+
+	private static boolean isAdfgvx(byte letter) {
+		return letter == 'A' || letter == 'D' || letter == 'F' || letter == 'G' || letter == 'V' || letter == 'X';
+	}
+
+	private static long readLong(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(OFFSET_BYTES);
+		readFully(channel, buffer, position);
+		return buffer.getLong(0);
+	}
+
+	private static byte readByte(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		readFully(channel, buffer, position);
+		return buffer.get(0);
+	}
+
+	/*
+	 * Finds the last position of a byte in the first count bytes, or -1.
+	 */
+	private static int lastIndexOf(byte[] bytes, int count, byte value) {
+		for (int i = count - 1; i >= 0; i--) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Fills a buffer from a position in a file.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("The file is truncated");
+			}
+		}
+	}
+
+}
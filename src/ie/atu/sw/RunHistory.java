@@ -0,0 +1,266 @@
+package ie.atu.sw;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a history of encryption and decryption runs in a small text file, one
+ * line per run, so a slow run can be noticed and compared with earlier ones. A
+ * run is only compared with runs of a comparable workload: the same mode,
+ * engine and number of threads, and the same power of two of bytes and of
+ * files, as the throughput depends on all of them. Its baseline is the median
+ * throughput of the last few comparable runs before it, and it is flagged as a
+ * regression when it falls more than a fifth below that.
+ *
+ * Each run is written with a single append, so runs finishing at the same time
+ * in other processes do not mix their lines. Lines that cannot be read, e.g.
+ * from a newer version, are skipped.
+ */
+public class RunHistory {
+	static final int BASELINE_RUNS = 5; 			// Comparable runs the baseline is the median of.
+	static final int MIN_BASELINE_RUNS = 3; 		// Fewer comparable runs give no baseline.
+	static final double REGRESSION_RATIO = 0.8; 	// Below this share of the baseline is a regression.
+
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+			.withZone(ZoneId.systemDefault());
+	private static final Object APPEND_LOCK = new Object();
+
+	private File file;
+
+	/**
+	 * One finished run.
+	 *
+	 * @param time    - when it finished.
+	 * @param mode    - "encrypt" or "decrypt".
+	 * @param files   - the number of files processed.
+	 * @param bytes   - the bytes of input processed.
+	 * @param millis  - how long it took from start to finish.
+	 * @param threads - the number of worker threads.
+	 * @param engine  - the engines the files went through, e.g. "matrix+streaming".
+	 */
+	public record Run(Instant time, String mode, int files, long bytes, long millis, int threads, String engine) {
+
+		/**
+		 * @return - the throughput in megabytes of input per second.
+		 */
+		public double megabytesPerSecond() {
+			return bytes / (1024.0 * 1024) / (Math.max(1, millis) / 1e3);
+		}
+
+		/**
+		 * @return - the kind of workload, to compare the run with others of the same
+		 *         kind.
+		 */
+		public Workload workload() {
+			return new Workload(mode, engine, threads, powerOfTwo(bytes), powerOfTwo(files));
+		}
+
+		/*
+		 * The run as a line of the history file.
+		 */
+		private String toLine() {
+			return String.join(",", time.toString(), mode, Integer.toString(files), Long.toString(bytes),
+					Long.toString(millis), Integer.toString(threads), engine);
+		}
+
+		/*
+		 * A line of the history file as a run, or null if it cannot be read.
+		 */
+		private static Run parse(String line) {
+			String[] fields = line.split(",");
+			if (fields.length != 7) {
+				return null;
+			}
+			try {
+				return new Run(Instant.parse(fields[0]), fields[1], Integer.parseInt(fields[2]),
+						Long.parseLong(fields[3]), Long.parseLong(fields[4]), Integer.parseInt(fields[5]), fields[6]);
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * A kind of workload. Runs with the same workload are comparable.
+	 *
+	 * @param mode       - "encrypt" or "decrypt".
+	 * @param engine     - the engines the files went through.
+	 * @param threads    - the number of worker threads.
+	 * @param bytesPower - the power of two of the bytes processed.
+	 * @param filesPower - the power of two of the files processed.
+	 */
+	public record Workload(String mode, String engine, int threads, int bytesPower, int filesPower) {
+
+		@Override
+		public String toString() {
+			return String.format("%s %s, %d thread(s), %s-%s, %d-%d files", mode, engine, threads,
+					bytes(1L << bytesPower), bytes(1L << bytesPower + 1), 1L << filesPower, (1L << filesPower + 1) - 1);
+		}
+	}
+
+	/**
+	 * Constructor - a history kept in the given file. The file is created by the
+	 * first run recorded.
+	 *
+	 * @param file - the history file.
+	 */
+	public RunHistory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return - the history file used when none is given: .adfgvx-history in the
+	 *         user's home directory.
+	 */
+	public static File defaultFile() {
+		return new File(System.getProperty("user.home"), ".adfgvx-history");
+	}
+
+	/**
+	 * Appends a run to the history and compares it with the comparable runs
+	 * before it.
+	 *
+	 * @param run - the run that has just finished.
+	 * @return - a warning if the run is a regression, or null.
+	 * @throws IOException - if the history cannot be read or written.
+	 */
+	public String record(Run run) throws IOException {
+		List<Run> runs = read();
+		runs.add(run);
+		synchronized (APPEND_LOCK) {
+			Files.writeString(file.toPath(), run.toLine() + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		}
+		String regression = regression(runs, runs.size() - 1);
+		return regression == null ? null : "Warning! Throughput regression: " + regression;
+	}
+
+	/**
+	 * @return - every run in the history, oldest first; empty if there is no
+	 *         history yet.
+	 * @throws IOException - if the history cannot be read.
+	 */
+	public List<Run> read() throws IOException {
+		List<Run> runs = new ArrayList<>();
+		if (!file.exists()) {
+			return runs;
+		}
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			Run run = Run.parse(line.strip());
+			if (run != null) {
+				runs.add(run);
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * The report of the history: the most recent runs, each flagged if it was a
+	 * regression, then the trend of each workload.
+	 *
+	 * @param recent - how many of the most recent runs to list.
+	 * @return - the report lines.
+	 * @throws IOException - if the history cannot be read.
+	 */
+	public List<String> report(int recent) throws IOException {
+		List<String> lines = new ArrayList<>();
+		List<Run> runs = read();
+		if (runs.isEmpty()) {
+			lines.add("No runs recorded yet in " + file + ".");
+			return lines;
+		}
+
+		lines.add("Recent runs (" + Math.min(recent, runs.size()) + " of " + runs.size() + ", newest last):");
+		for (int i = Math.max(0, runs.size() - recent); i < runs.size(); i++) {
+			Run run = runs.get(i);
+			String regression = regression(runs, i);
+			lines.add(String.format("  %s  %-7s %6d files %10s %8d ms %9.1f MB/s  %2d thread(s)  %s%s",
+					TIME_FORMAT.format(run.time()), run.mode(), run.files(), bytes(run.bytes()), run.millis(),
+					run.megabytesPerSecond(), run.threads(), run.engine(),
+					regression == null ? "" : "  REGRESSION: " + regression));
+		}
+
+		// The runs of each workload, in the order each was first seen.
+		Map<Workload, List<Integer>> workloads = new LinkedHashMap<>();
+		for (int i = 0; i < runs.size(); i++) {
+			workloads.computeIfAbsent(runs.get(i).workload(), workload -> new ArrayList<>()).add(i);
+		}
+		lines.add("Trends by workload:");
+		for (Map.Entry<Workload, List<Integer>> entry : workloads.entrySet()) {
+			List<Integer> indices = entry.getValue();
+			int latest = indices.get(indices.size() - 1);
+			double best = indices.stream().mapToDouble(i -> runs.get(i).megabytesPerSecond()).max().orElse(0);
+			double baseline = baseline(runs, latest);
+			lines.add(String.format("  %s: %d run(s), latest %.1f MB/s, best %.1f MB/s, %s", entry.getKey(),
+					indices.size(), runs.get(latest).megabytesPerSecond(), best,
+					Double.isNaN(baseline) ? "no baseline yet"
+							: String.format("baseline %.1f MB/s (%+.0f%%)", baseline,
+									(runs.get(latest).megabytesPerSecond() / baseline - 1) * 100)));
+		}
+		return lines;
+	}
+
+	/*
+	 * The median throughput of the last comparable runs before the run at the
+	 * index, or NaN if there are too few of them.
+	 */
+	private static double baseline(List<Run> runs, int index) {
+		Workload workload = runs.get(index).workload();
+		double[] throughputs = new double[BASELINE_RUNS];
+		int found = 0;
+		for (int i = index - 1; i >= 0 && found < BASELINE_RUNS; i--) {
+			if (runs.get(i).workload().equals(workload)) {
+				throughputs[found++] = runs.get(i).megabytesPerSecond();
+			}
+		}
+		if (found < MIN_BASELINE_RUNS) {
+			return Double.NaN;
+		}
+		Arrays.sort(throughputs, 0, found);
+		return found % 2 == 1 ? throughputs[found / 2] : (throughputs[found / 2 - 1] + throughputs[found / 2]) / 2;
+	}
+
+	/*
+	 * Describes how far the run at the index fell below its baseline, or null if
+	 * it is not a regression.
+	 */
+	private static String regression(List<Run> runs, int index) {
+		double baseline = baseline(runs, index);
+		double throughput = runs.get(index).megabytesPerSecond();
+		if (Double.isNaN(baseline) || throughput >= baseline * REGRESSION_RATIO) {
+			return null;
+		}
+		return String.format("%.1f MB/s is %.0f%% below the baseline of %.1f MB/s for %s", throughput,
+				(1 - throughput / baseline) * 100, baseline, runs.get(index).workload());
+	}
+
+	/*
+	 * The power of two at or below a count, 0 for 0.
+	 */
+	private static int powerOfTwo(long count) {
+		return 63 - Long.numberOfLeadingZeros(Math.max(1, count));
+	}
+
+	/*
+	 * A number of bytes in the largest unit it has at least one of.
+	 */
+	private static String bytes(long bytes) {
+		if (bytes < 1024) {
+			return bytes + " B";
+		}
+		int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+		return String.format("%.1f %sB", bytes / (double) (1L << unit * 10), "KMGTPE".charAt(unit - 1));
+	}
+
+}
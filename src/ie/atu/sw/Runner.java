@@ -2,13 +2,19 @@ package ie.atu.sw;
 
 /**
  * Start the application by running this class and follwoing the on-screen
- * instructions.
+ * instructions. Give a command as the arguments to run it without the menu,
+ * see {@link CommandLine}.
  * 
  * @author chloe
  */
 public class Runner {
 
 	public static void main(String[] args) {
-		new Menu().startMenu();
+		Metrics.register();
+		if (args.length == 0) {
+			new Menu().startMenu();
+		} else {
+			System.exit(new CommandLine().run(args));
+		}
 	}
 }
@@ -0,0 +1,171 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the application against properties it must keep, run with the
+ * "selfcheck" command, e.g. before a release. Each check prints one line with
+ * PASS or FAIL and what was measured.
+ *
+ * The allocation check encrypts and decrypts a fixed large buffer and measures
+ * the heap memory the current thread allocates per character. The block cipher
+ * loops must not allocate at all once they are warm, and the whole-text paths
+ * may only allocate a fixed number of bytes per character for their results,
+ * so an allocation per character creeping back into a loop makes it fail.
+ *
+ * The engine checks compare every fast engine with the original code on random
+ * cases, see {@link DifferentialCheck}.
+ */
+public class SelfCheck {
+	private static final String KEY = "ZEBRA12";
+	private static final int TEXT_LENGTH = 4 * 1024 * 1024;
+	private static final int BLOCK_SIZE = BlockFormat.DEFAULT_BLOCK_SIZE;
+	private static final int WARMUP_ROUNDS = 3;
+
+	// Most bytes allowed per plaintext character.
+	private static final double BLOCK_BYTES_PER_CHARACTER = 0.01; 		// Allocation-free apart from noise.
+	private static final double MATRIX_BYTES_PER_CHARACTER = 4; 		// The result and its column starts.
+	private static final double TEXT_BYTES_PER_CHARACTER = 40; 			// Builders, matrices and Strings.
+
+	private PrintStream out;
+	private int failures;
+	private long seed = 44;
+	private int cases = 500;
+
+	/**
+	 * Constructor - a self-check printing its results to the given stream.
+	 *
+	 * @param out - receives one line per check.
+	 */
+	public SelfCheck(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Sets the seed for the random cases of the engine checks. The same seed
+	 * gives the same cases, so a failure can be run again.
+	 *
+	 * @param seed - the seed.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets how many random cases each engine is checked on, on top of the fixed
+	 * edge cases.
+	 *
+	 * @param cases - the number of random cases.
+	 */
+	public void setCases(int cases) {
+		if (cases < 0) {
+			throw new IllegalArgumentException("The number of cases cannot be negative");
+		}
+		this.cases = cases;
+	}
+
+	/**
+	 * Runs every check.
+	 *
+	 * @return - the number of checks that failed.
+	 * @throws IOException - if the scratch files of a check cannot be written.
+	 */
+	public int run() throws IOException {
+		failures = 0;
+		checkAllocations();
+		failures += new DifferentialCheck(seed, cases).run(out);
+		return failures;
+	}
+
+	/**
+	 * Measures the bytes allocated per character by each cipher path and fails
+	 * the paths that allocate more than their limit.
+	 */
+	public void checkAllocations() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)
+				|| !threads.isThreadAllocatedMemorySupported()) {
+			out.println("SKIP allocation: this JVM cannot measure allocated memory");
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		byte[] plaintext = randomText(TEXT_LENGTH, new Random(43));
+		byte[] ciphertext = new byte[2 * TEXT_LENGTH];
+		byte[] decrypted = new byte[TEXT_LENGTH];
+		KeyPlan plan = new KeyPlan(KEY.toCharArray());
+
+		allocationLimit("block encrypt", BLOCK_BYTES_PER_CHARACTER, () -> {
+			for (int offset = 0; offset < TEXT_LENGTH; offset += BLOCK_SIZE) {
+				plan.encryptBlock(plaintext, offset, Math.min(BLOCK_SIZE, TEXT_LENGTH - offset), ciphertext, 2 * offset);
+			}
+		});
+		allocationLimit("block decrypt", BLOCK_BYTES_PER_CHARACTER, () -> {
+			for (int offset = 0; offset < 2 * TEXT_LENGTH; offset += 2 * BLOCK_SIZE) {
+				plan.decryptBlock(ciphertext, offset, Math.min(2 * BLOCK_SIZE, 2 * TEXT_LENGTH - offset), decrypted,
+						offset / 2);
+			}
+		});
+		check("block round trip", Arrays.equals(plaintext, decrypted), "decrypted text matches the plaintext");
+
+		byte[][] matrixCiphertext = new byte[1][];
+		allocationLimit("matrix encrypt", MATRIX_BYTES_PER_CHARACTER,
+				() -> matrixCiphertext[0] = plan.encryptMatrix(plaintext, 0, TEXT_LENGTH));
+		allocationLimit("matrix decrypt", MATRIX_BYTES_PER_CHARACTER,
+				() -> plan.decryptMatrix(matrixCiphertext[0], 0, matrixCiphertext[0].length));
+
+		Key key = new Key();
+		key.setKey(KEY);
+		Encryption encryption = new Encryption(new InputDirectory(), new OutputDirectory(), key);
+		Decryption decryption = new Decryption(new InputDirectory(), new OutputDirectory(), key);
+		String text = new String(plaintext, 0, TEXT_LENGTH / 4, StandardCharsets.US_ASCII);
+		String[] encryptedText = new String[1];
+		allocationLimit("text encrypt", TEXT_BYTES_PER_CHARACTER, text.length(),
+				() -> encryptedText[0] = encryption.encryptText(text));
+		allocationLimit("text decrypt", TEXT_BYTES_PER_CHARACTER, text.length(),
+				() -> decryption.decryptMatrixText(encryptedText[0]));
+	}
+
+	/*
+	 * Runs the work a few times to warm it up, then measures one more run over
+	 * the whole text.
+	 */
+	private void allocationLimit(String name, double limit, Runnable work) {
+		allocationLimit(name, limit, TEXT_LENGTH, work);
+	}
+
+	private void allocationLimit(String name, double limit, int characters, Runnable work) {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			work.run();
+		}
+		long before = Metrics.allocatedBytes();
+		work.run();
+		double perCharacter = (double) (Metrics.allocatedBytes() - before) / characters;
+		check("allocation " + name, perCharacter <= limit,
+				String.format("%.3f bytes per character (limit %s)", perCharacter, limit));
+	}
+
+	private void check(String name, boolean passed, String detail) {
+		if (!passed) {
+			failures++;
+		}
+		out.println((passed ? "PASS " : "FAIL ") + name + ": " + detail);
+	}
+
+	/*
+	 * Random uppercase letters and digits, the characters the cipher accepts.
+	 */
+	private static byte[] randomText(int length, Random random) {
+		String characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+		byte[] text = new byte[length];
+		for (int i = 0; i < length; i++) {
+			text[i] = (byte) characters.charAt(random.nextInt(characters.length()));
+		}
+		return text;
+	}
+
+}
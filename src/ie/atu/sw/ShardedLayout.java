@@ -0,0 +1,105 @@
+package ie.atu.sw;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A layout for output directories with a very large number of files. Instead of
+ * putting every file in one directory, file number N goes two directories deep,
+ * e.g. encrypted70000.txt is written as 01/11/encrypted70000.txt, so no
+ * directory holds more than 256 entries until there are millions of files. An
+ * index file at the top maps each input file to the path of its output, in file
+ * number order. A directory with an index is read through it, so a sharded
+ * directory can be decrypted or verified like a flat one.
+ */
+public class ShardedLayout {
+	static final String INDEX_FILE = "index.tsv";
+	private static final int FAN_OUT_BITS = 8; // 256 entries per directory level.
+
+	/**
+	 * The directories a file number is placed in.
+	 *
+	 * @param fileNumber - the number of the file in its job.
+	 * @return - the relative path of its directory, e.g. "01/11".
+	 */
+	public static String shardOf(int fileNumber) {
+		int fanOut = 1 << FAN_OUT_BITS;
+		return String.format("%02x/%02x", fileNumber >>> (2 * FAN_OUT_BITS),
+				(fileNumber >>> FAN_OUT_BITS) & (fanOut - 1));
+	}
+
+	/**
+	 * Lists the files to process in an input directory. A sharded directory is
+	 * listed from its index; any other directory gives its text files in name
+	 * order.
+	 *
+	 * @param directory - the input directory.
+	 * @return - the files to process, in order.
+	 * @throws IOException - if the directory or its index cannot be read.
+	 */
+	public static File[] listInputFiles(File directory) throws IOException {
+		File index = new File(directory, INDEX_FILE);
+		if (!index.isFile()) {
+			return new Parser().listTextFiles(directory.getPath());
+		}
+
+		List<File> files = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(index))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab < 0) {
+					throw new IOException("The index " + index + " is not valid: " + line);
+				}
+				files.add(new File(directory, line.substring(tab + 1)));
+			}
+		}
+		return files.toArray(new File[0]);
+	}
+
+	/**
+	 * Removes the index a sharded job left in a directory, so a later job that
+	 * writes the directory flat is not read through the old index.
+	 *
+	 * @param outputDirectory - the directory.
+	 * @throws IOException - if the index cannot be deleted.
+	 */
+	public static void removeIndex(File outputDirectory) throws IOException {
+		Files.deleteIfExists(new File(outputDirectory, INDEX_FILE).toPath());
+	}
+
+	/**
+	 * Writes the index of a sharded directory: one line per input file with its
+	 * name and the relative path of its output, separated by a tab. The index is
+	 * written under a temporary name and then renamed, so it is never seen half
+	 * written.
+	 *
+	 * @param outputDirectory - the sharded directory.
+	 * @param inputFiles      - the input files, in file number order.
+	 * @param outputFiles     - the output file of each input file.
+	 * @throws IOException - if the index cannot be written.
+	 */
+	public static void writeIndex(File outputDirectory, File[] inputFiles, File[] outputFiles) throws IOException {
+		File index = new File(outputDirectory, INDEX_FILE);
+		File temporaryIndex = new File(outputDirectory, "." + INDEX_FILE + ".tmp");
+		String base = outputDirectory.getAbsolutePath() + File.separator;
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(temporaryIndex))) {
+			for (int i = 0; i < inputFiles.length; i++) {
+				String relativePath = outputFiles[i].getAbsolutePath().substring(base.length());
+				writer.write(inputFiles[i].getName() + "\t" + relativePath.replace(File.separatorChar, '/') + "\n");
+			}
+		}
+		Files.move(temporaryIndex.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
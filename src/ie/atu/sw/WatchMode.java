@@ -0,0 +1,213 @@
+package ie.atu.sw;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches the input directory and encrypts each text file as soon as it has
+ * been written. A file is treated as finished once it has had no changes for
+ * the debounce time, so files that are still being written are not picked up
+ * half way. The key is compiled once and a pool of worker threads is kept
+ * running, so each file is encrypted with no start-up cost. Output files are
+ * named "encrypted_" + the input file name. Each output is written under a
+ * temporary name and renamed when it is finished, so it is never seen half
+ * written, and a file is only encrypted by one worker at a time: if it changes
+ * again while it is being encrypted, it is encrypted again afterwards.
+ */
+public class WatchMode {
+	private static final long POLL_MILLIS = 5;
+
+	private Encryption encryption;
+	private Path inputDirectory;
+	private File outputDirectory;
+	private long debounceNanos;
+	private ExecutorService workers;
+
+	private Map<Path, Long> pendingFiles = new HashMap<>(); 	// File -> time of its last change.
+	private Map<Path, Long> encryptedVersions = new HashMap<>(); // File -> last modified time already encrypted.
+	private Set<Path> runningFiles = ConcurrentHashMap.newKeySet(); // Files a worker is encrypting.
+	private FileLatencies latencies = new FileLatencies(); 		// From last change to output written.
+	private AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * Constructor - a new watcher for the input directory.
+	 *
+	 * @param encryption      - encryption set up with the key to use.
+	 * @param inputDirectory  - the directory to watch for new text files.
+	 * @param outputDirectory - the directory the encrypted files are written to.
+	 * @param debounceMillis  - how long a file must be unchanged before it is
+	 *                        encrypted.
+	 * @param threads         - the number of worker threads.
+	 */
+	public WatchMode(Encryption encryption, String inputDirectory, String outputDirectory, long debounceMillis,
+			int threads) {
+		this.encryption = encryption;
+		this.inputDirectory = Path.of(inputDirectory);
+		this.outputDirectory = new File(outputDirectory);
+		this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+		this.workers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Watches the input directory until the program is stopped. When it stops, the
+	 * latency report is printed.
+	 *
+	 * @throws IOException - if the directory cannot be watched.
+	 */
+	public void run() throws IOException {
+		// Compile the key and load the encryption code before the first file arrives.
+		encryption.encryptText("WARMUP");
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			inputDirectory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+			System.out.println("Watching " + inputDirectory + " for text files. Press Ctrl+C to stop.");
+
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey watchKey = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (watchKey != null) {
+					for (WatchEvent<?> event : watchKey.pollEvents()) {
+						if (event.kind() == OVERFLOW) {
+							rescanDirectory();
+						} else {
+							fileChanged(inputDirectory.resolve((Path) event.context()));
+						}
+					}
+					watchKey.reset();
+				}
+				submitSettledFiles();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops the worker threads and prints the latency report.
+	 */
+	public void stop() {
+		workers.shutdown();
+		try {
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		printLatencyReport();
+	}
+
+	/*
+	 * Notes the time a text file changed. It is encrypted once it settles.
+	 */
+	private void fileChanged(Path file) {
+		String name = file.getFileName().toString();
+		boolean ownOutput = name.startsWith("encrypted_") && outputDirectory.toPath().toAbsolutePath().normalize()
+				.equals(inputDirectory.toAbsolutePath().normalize());
+
+		if (name.endsWith(".txt") && !ownOutput) {
+			pendingFiles.put(file, System.nanoTime());
+		}
+	}
+
+	/*
+	 * Events were lost, so look at every text file and queue the ones that changed
+	 * since they were last encrypted.
+	 */
+	private void rescanDirectory() {
+		File[] files = inputDirectory.toFile().listFiles(file -> file.isFile() && file.getName().endsWith(".txt"));
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			Long encryptedVersion = encryptedVersions.get(file.toPath());
+			if (encryptedVersion == null || encryptedVersion != file.lastModified()) {
+				fileChanged(file.toPath());
+			}
+		}
+	}
+
+	/*
+	 * Hands every file that has not changed for the debounce time to a worker.
+	 */
+	private void submitSettledFiles() {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<Path, Long>> iterator = pendingFiles.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+			Map.Entry<Path, Long> entry = iterator.next();
+			// A file still being encrypted stays pending until its worker is done.
+			if (now - entry.getValue() < debounceNanos || runningFiles.contains(entry.getKey())) {
+				continue;
+			}
+			iterator.remove();
+
+			File inputFile = entry.getKey().toFile();
+			if (!inputFile.isFile()) {
+				continue;
+			}
+			encryptedVersions.put(entry.getKey(), inputFile.lastModified());
+			long changedAt = entry.getValue();
+			runningFiles.add(entry.getKey());
+			workers.submit(() -> encrypt(inputFile, changedAt));
+		}
+	}
+
+	/*
+	 * Encrypts one file on a worker thread and records how long it took from the
+	 * file's last change until the output was in place.
+	 */
+	private void encrypt(File inputFile, long changedAt) {
+		File outputFile = new File(outputDirectory, "encrypted_" + inputFile.getName());
+		File temporaryFile = GroupCommit.temporaryFileFor(outputFile);
+		try {
+			FileLatencies.startFile();
+			encryption.encryptFile(inputFile, temporaryFile);
+			GroupCommit.moveIntoPlace(temporaryFile, outputFile);
+			long latency = System.nanoTime() - changedAt;
+			latencies.record(inputFile.getName(), latency);
+			System.out.printf("Encrypted %s (%.1f ms)%n", inputFile.getName(), latency / 1e6);
+		} catch (Exception e) {
+			failures.incrementAndGet();
+			System.err.println("Error! Cannot encrypt file " + inputFile.getName() + ": " + e.getMessage());
+			try {
+				GroupCommit.discard(temporaryFile);
+			} catch (IOException discardFailure) {
+				// Left behind under its temporary name, which is never read.
+			}
+		} finally {
+			runningFiles.remove(inputFile.toPath());
+		}
+	}
+
+	/*
+	 * Prints the latency percentiles of all the files encrypted so far, and the
+	 * slowest files. The latency includes the debounce time; the stage times do
+	 * not.
+	 */
+	private void printLatencyReport() {
+		System.out.println("");
+		System.out.println("Files encrypted: " + latencies.getCount() + ", failed: " + failures.get());
+		if (latencies.getCount() == 0) {
+			return;
+		}
+		latencies.report().forEach(System.out::println);
+	}
+
+}
@@ -0,0 +1,299 @@
+package ie.atu.sw;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the files of a job between several processes, on one machine or on
+ * several machines using the same storage. There is no coordinator: before a
+ * process works on a file it claims it by creating a lease file, which only one
+ * process can do, and when the output is finished the lease is renamed to a done
+ * marker. A process keeps its leases alive by touching them regularly, so the
+ * lease of a process that died stops being touched, goes stale and is taken
+ * over by another process.
+ *
+ * The lease files live in a hidden directory in the output directory, named
+ * after the input file: "name.lease" while it is being worked on and
+ * "name.done" once it is finished. A lease holds the id of the process that
+ * owns it, and a process checks the lease is still its own before it puts an
+ * output in place, so a slow process whose lease was taken over leaves the
+ * file to the process that took it. A done marker holds the size and time of
+ * the input it was made from and a fingerprint of the job, e.g. its key, so a
+ * later job into the same output directory, or a changed input, does not count
+ * as done.
+ */
+public class WorkLeases implements Closeable {
+	private File leaseDirectory;
+	private String workerId;
+	private long leaseMillis;
+	private String jobFingerprint;
+	private Set<File> heldLeases = ConcurrentHashMap.newKeySet();
+	private ScheduledExecutorService heartbeat;
+
+	/**
+	 * Constructor - joins the work on a job's output directory.
+	 *
+	 * @param outputDirectory - the output directory shared by the processes.
+	 * @param outputPrefix    - prefix of the output files, e.g. "encrypted".
+	 * @param leaseMillis     - how long a lease lasts without being renewed.
+	 * @param jobFingerprint  - identifies the job, see {@link #fingerprint}.
+	 * @throws IOException - if the lease directory cannot be created.
+	 */
+	public WorkLeases(File outputDirectory, String outputPrefix, long leaseMillis, String jobFingerprint)
+			throws IOException {
+		if (leaseMillis <= 0) {
+			throw new IllegalArgumentException("The lease time must be more than 0");
+		}
+		this.leaseDirectory = new File(outputDirectory, "." + outputPrefix + ".leases");
+		this.workerId = workerName();
+		this.leaseMillis = leaseMillis;
+		this.jobFingerprint = jobFingerprint;
+		Files.createDirectories(leaseDirectory.toPath());
+
+		// Renew every lease three times per lease time, so one late renewal is not fatal.
+		heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "lease-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		heartbeat.scheduleAtFixedRate(this::renewLeases, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return - the name of this process, e.g. "host-1234", used in its file
+	 *         names.
+	 */
+	public String getWorkerId() {
+		return workerId;
+	}
+
+	/**
+	 * Makes a job fingerprint from its settings. The settings are hashed, so a
+	 * key in them is not written to the done markers.
+	 *
+	 * @param settings - everything that changes the outputs, e.g. the mode, the
+	 *                 key and the format.
+	 * @return - the fingerprint.
+	 */
+	public static String fingerprint(String settings) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(settings.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(hash, 0, 16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); 	// Every JVM has SHA-256.
+		}
+	}
+
+	/**
+	 * @param inputName - the name of an input file.
+	 * @param inputFile - the input file.
+	 * @return - true if some process has finished the file as it is now, in this
+	 *         job.
+	 */
+	public boolean isDone(String inputName, File inputFile) {
+		try {
+			return Files.readString(doneFile(inputName).toPath()).strip().equals(stampOf(inputFile));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param inputName - the name of an input file.
+	 * @return - true if this process claimed the file and its lease still holds
+	 *         this process's id, i.e. it has not been taken over.
+	 */
+	public boolean holds(String inputName) {
+		File lease = leaseFile(inputName);
+		return heldLeases.contains(lease) && isOwnLease(lease);
+	}
+
+	/**
+	 * Tries to claim a file for this process. A stale lease left by a process
+	 * that stopped renewing it is taken over.
+	 *
+	 * @param inputName - the name of an input file.
+	 * @param inputFile - the input file.
+	 * @return - true if this process now holds the lease and should process the
+	 *         file; false if it is done or another process holds it.
+	 * @throws IOException - if the lease cannot be written.
+	 */
+	public boolean claim(String inputName, File inputFile) throws IOException {
+		File lease = leaseFile(inputName);
+		try {
+			Files.writeString(lease.toPath(), workerId + "\n", StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} catch (FileAlreadyExistsException e) {
+			if (!takeOverStaleLease(lease)) {
+				return false;
+			}
+			return claim(inputName, inputFile);
+		}
+
+		// The file may have been finished between the caller's check and the claim.
+		if (isDone(inputName, inputFile)) {
+			Files.deleteIfExists(lease.toPath());
+			return false;
+		}
+		heldLeases.add(lease);
+		return true;
+	}
+
+	/**
+	 * Marks a claimed file as finished, once its output is in place. The done
+	 * marker is written under a name of this process's own and then renamed over
+	 * any marker left by an earlier job.
+	 *
+	 * @param inputName - the name of the input file.
+	 * @param inputFile - the input file.
+	 * @throws IOException - if the lease is no longer this process's, or the
+	 *                     marker cannot be written.
+	 */
+	public void complete(String inputName, File inputFile) throws IOException {
+		File lease = leaseFile(inputName);
+		if (!holds(inputName)) {
+			heldLeases.remove(lease);
+			throw new IOException("The lease on " + inputName + " was taken over by another worker");
+		}
+		File marker = new File(leaseDirectory, inputName + ".done-" + workerId);
+		Files.writeString(marker.toPath(), stampOf(inputFile) + "\n");
+		Files.move(marker.toPath(), doneFile(inputName).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		heldLeases.remove(lease);
+		Files.deleteIfExists(lease.toPath());
+	}
+
+	/**
+	 * Gives up a claimed file, e.g. after it failed, so another process can try
+	 * it. A lease that was taken over is left to its new owner.
+	 *
+	 * @param inputName - the name of the input file.
+	 * @throws IOException - if the lease cannot be deleted.
+	 */
+	public void release(String inputName) throws IOException {
+		File lease = leaseFile(inputName);
+		boolean own = holds(inputName);
+		heldLeases.remove(lease);
+		if (own) {
+			Files.deleteIfExists(lease.toPath());
+		}
+	}
+
+	/**
+	 * @param inputFiles - all the input files of the job.
+	 * @return - true if every file has been finished by some process.
+	 */
+	public boolean allDone(File[] inputFiles) {
+		for (File inputFile : inputFiles) {
+			if (!isDone(inputFile.getName(), inputFile)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return - how long to wait before looking again for files whose lease may
+	 *         have gone stale.
+	 */
+	public long pollMillis() {
+		return Math.max(1, leaseMillis / 4);
+	}
+
+	/**
+	 * Stops renewing the leases. Leases still held are left to go stale.
+	 */
+	@Override
+	public void close() {
+		heartbeat.shutdownNow();
+	}
+
+	/*
+	 * Touches every lease held by this process so it does not go stale. A lease
+	 * that cannot be touched, or that another process has taken over, is lost.
+	 */
+	private void renewLeases() {
+		long now = System.currentTimeMillis();
+		for (File lease : heldLeases) {
+			if (!isOwnLease(lease) || !lease.setLastModified(now)) {
+				heldLeases.remove(lease);
+			}
+		}
+	}
+
+	/*
+	 * Checks that a lease file holds this process's id.
+	 */
+	private boolean isOwnLease(File lease) {
+		try {
+			return Files.readString(lease.toPath()).strip().equals(workerId);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * What a done marker holds for an input file in this job.
+	 */
+	private String stampOf(File inputFile) {
+		return inputFile.length() + " " + inputFile.lastModified() + " " + jobFingerprint;
+	}
+
+	/*
+	 * Takes a lease that has not been renewed for the lease time out of the way.
+	 * It is first renamed to a name of this process's own, which only one process
+	 * can do, so two processes never both take over the same lease.
+	 */
+	private boolean takeOverStaleLease(File lease) throws IOException {
+		long lastRenewed = lease.lastModified();
+		if (lastRenewed == 0 || System.currentTimeMillis() - lastRenewed < leaseMillis) {
+			return false;
+		}
+		File takenOver = new File(leaseDirectory, lease.getName() + ".stale-" + workerId);
+		try {
+			Files.move(lease.toPath(), takenOver.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return false; // Another process took it over or finished it first.
+		}
+		Files.delete(takenOver.toPath());
+		return true;
+	}
+
+	private File leaseFile(String inputName) {
+		return new File(leaseDirectory, inputName + ".lease");
+	}
+
+	private File doneFile(String inputName) {
+		return new File(leaseDirectory, inputName + ".done");
+	}
+
+	/*
+	 * A name for this process that is unique across the machines sharing the
+	 * directory: the host name and the process id.
+	 */
+	private static String workerName() {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			host = "localhost";
+		}
+		return (host + "-" + ProcessHandle.current().pid()).replaceAll("[^A-Za-z0-9.-]", "_");
+	}
+
+}
@@ -0,0 +1,380 @@
+package ie.atu.sw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Encrypts or decrypts the text files of a ZIP archive, and/or writes the
+ * outputs into one, without extracting anything to disk. The other side can be
+ * a directory as usual. The entries are read straight from the archive with
+ * {@link ZipFile}, which can read several entries at once, and are worked on by
+ * several threads. Each result is kept in memory until the archive being
+ * written is free and then written as one entry, so only the writing of the
+ * output archive is done one entry at a time. An entry too big to keep in
+ * memory is written straight into the archive while the archive is held.
+ *
+ * Entries are numbered in name order, the same as files, so the output names
+ * are encrypted0.txt, encrypted1.txt... and the names inside the archive are
+ * never used as paths. The output archive is written under a temporary name and
+ * renamed when it is complete, so a failed job leaves no half-written archive.
+ * The options that keep state next to the output files (resume, sync groups,
+ * deduplication, shards and shared workers) need directories.
+ */
+public class ZipJob {
+	private File input;
+	private File output;
+	private String outputPrefix;
+	private int threads = 1;
+	private MemoryGovernor memoryGovernor = new MemoryGovernor(MemoryGovernor.defaultBudget());
+	private long makespanMillis;
+	private AtomicLong bytesProcessed = new AtomicLong();
+	private List<String> reports = new ArrayList<>();
+
+	/**
+	 * The work done for each entry.
+	 */
+	public interface EntryTask {
+		/**
+		 * Processes one entry.
+		 *
+		 * @param in  - the content of the entry, buffered so it can be marked; it
+		 *            does not need to be closed.
+		 * @param out - receives the result; it must not be closed.
+		 * @throws Exception - if the entry cannot be processed.
+		 */
+		void process(InputStream in, OutputStream out) throws Exception;
+	}
+
+	/*
+	 * Writes the content of an output entry.
+	 */
+	private interface Content {
+		void writeTo(OutputStream out) throws Exception;
+	}
+
+	/*
+	 * One text file to process: an entry of the input archive, or a file of the
+	 * input directory.
+	 */
+	private record Input(String name, long size, ZipEntry entry, File file) {
+	}
+
+	/**
+	 * Constructor - a new job from one path to another.
+	 *
+	 * @param input        - the input archive or directory.
+	 * @param output       - the output archive or directory.
+	 * @param outputPrefix - the start of each output name, e.g. "encrypted".
+	 */
+	public ZipJob(String input, String output, String outputPrefix) {
+		this.input = new File(input);
+		this.output = new File(output);
+		this.outputPrefix = outputPrefix;
+	}
+
+	/**
+	 * @param path - an input or output path.
+	 * @return - true if the path names a ZIP archive.
+	 */
+	public static boolean isZip(String path) {
+		return path != null && path.toLowerCase().endsWith(".zip");
+	}
+
+	/**
+	 * Checks that no option is set that needs directories on both sides.
+	 *
+	 * @param resume      - true to continue an interrupted job.
+	 * @param syncGroup   - files forced to disk together, or 0.
+	 * @param deduplicate - true to process identical files once.
+	 * @param sharded     - true to write the outputs in shards.
+	 * @param leaseMillis - the lease of a shared job, or 0.
+	 * @throws IllegalArgumentException - if one of them is set.
+	 */
+	public static void checkOptions(boolean resume, int syncGroup, boolean deduplicate, boolean sharded,
+			long leaseMillis) {
+		if (resume || syncGroup > 0 || deduplicate || sharded || leaseMillis > 0) {
+			throw new IllegalArgumentException(
+					"--resume, --sync-group, --dedup, --shards and --worker need directories, not ZIP archives");
+		}
+	}
+
+	/**
+	 * Sets the number of entries processed at the same time.
+	 *
+	 * @param threads - the number of worker threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("The number of threads must be at least 1");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the governor that keeps the entries held in memory at once under its
+	 * budget.
+	 *
+	 * @param memoryGovernor - the governor to use.
+	 */
+	public void setMemoryGovernor(MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+	}
+
+	/**
+	 * @return - summary lines from the last run; empty if there is nothing to
+	 *         report.
+	 */
+	public List<String> getReports() {
+		return reports;
+	}
+
+	/**
+	 * @return - how long the last run took from start to finish, in milliseconds.
+	 */
+	public long getMakespanMillis() {
+		return makespanMillis;
+	}
+
+	/**
+	 * @return - the bytes of input in the entries processed by the last run.
+	 */
+	public long getBytesProcessed() {
+		return bytesProcessed.get();
+	}
+
+	/**
+	 * Runs the task on each text file of the input, several at a time, largest
+	 * first. If an entry fails, no new entries are started, the output archive is
+	 * removed and the error is thrown once the entries already running have
+	 * finished.
+	 *
+	 * @param task - the work to do for each entry.
+	 * @return - the number of entries processed.
+	 * @throws IOException - if an entry cannot be processed or an archive cannot
+	 *                     be read or written.
+	 */
+	public int run(EntryTask task) throws IOException {
+		long start = System.nanoTime();
+		FileLatencies latencies = new FileLatencies();
+		AtomicInteger nextInput = new AtomicInteger();
+		AtomicInteger processed = new AtomicInteger();
+		AtomicReference<IOException> failure = new AtomicReference<>();
+
+		reports = new ArrayList<>();
+		bytesProcessed.set(0);
+
+		try (ZipFile zipFile = isZip(input.getPath()) ? new ZipFile(input) : null;
+				ZipOutputStream zipOut = isZip(output.getPath())
+						? new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryOutput())))
+						: null) {
+			List<Input> inputs = listInputs(zipFile);
+			// Largest first, so a big entry does not start last and hold up the end.
+			int[] dispatchOrder = IntStream.range(0, inputs.size()).boxed()
+					.sorted(Comparator.comparingLong((Integer i) -> inputs.get(i).size()).reversed())
+					.mapToInt(Integer::intValue).toArray();
+			Metrics.get().queued(inputs.size());
+
+			Runnable worker = () -> {
+				int next;
+				while (failure.get() == null && (next = nextInput.getAndIncrement()) < dispatchOrder.length) {
+					Metrics.get().queued(-1);
+					Input input = inputs.get(dispatchOrder[next]);
+					String outputName = outputPrefix + dispatchOrder[next] + ".txt";
+					long inputStart = System.nanoTime();
+					long allocatedAtStart = Metrics.allocatedBytes();
+					FileLatencies.startFile();
+					Metrics.get().workerActive(1);
+					try {
+						long written = process(task, zipFile, zipOut, input, outputName);
+						processed.incrementAndGet();
+						bytesProcessed.addAndGet(input.size());
+						latencies.record(input.name(), System.nanoTime() - inputStart);
+						Metrics.get().fileProcessed(outputPrefix, input.size(), written,
+								System.nanoTime() - inputStart, Metrics.allocatedBytes() - allocatedAtStart);
+					} catch (Exception e) {
+						failure.compareAndSet(null, e instanceof IOException ioException ? ioException
+								: new IOException(input.name() + ": " + e.getMessage(), e));
+						Metrics.get().fileFailed(outputPrefix);
+					} finally {
+						Metrics.get().workerActive(-1);
+					}
+				}
+			};
+
+			try {
+				runWorkers(worker, inputs.size());
+			} finally {
+				// Entries left untaken after a failure leave the queue too.
+				Metrics.get().queued(-(inputs.size() - Math.min(nextInput.get(), inputs.size())));
+			}
+			if (latencies.getCount() > 0) {
+				reports.addAll(latencies.report());
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+			if (zipOut != null) {
+				zipOut.finish();
+			}
+		} catch (IOException e) {
+			if (isZip(output.getPath())) {
+				temporaryOutput().delete();
+			}
+			throw e;
+		} finally {
+			makespanMillis = (System.nanoTime() - start) / 1_000_000;
+		}
+
+		if (isZip(output.getPath())) {
+			Files.move(temporaryOutput().toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		return processed.get();
+	}
+
+	/*
+	 * Processes one input into its output. A small result is made in memory
+	 * first, so the output archive is only held while it is copied in; a large one
+	 * is streamed into the archive while holding it.
+	 */
+	private long process(EntryTask task, ZipFile zipFile, ZipOutputStream zipOut, Input input, String outputName)
+			throws Exception {
+		boolean streaming = memoryGovernor.useStreaming(input.size());
+		long reservedMemory = memoryGovernor.acquire(input.size(), streaming);
+
+		try (InputStream in = new BufferedInputStream(
+				zipFile != null ? zipFile.getInputStream(input.entry()) : new FileInputStream(input.file()))) {
+			if (streaming) {
+				return write(zipOut, outputName, out -> task.process(in, out));
+			}
+			ByteArrayOutputStream result = new ByteArrayOutputStream((int) Math.min(2 * input.size() + 64,
+					Integer.MAX_VALUE - 8));
+			task.process(in, result);
+			long lap = System.nanoTime();
+			long written = write(zipOut, outputName, result::writeTo);
+			FileLatencies.lap(FileLatencies.Stage.WRITE, lap);
+			return written;
+		} finally {
+			memoryGovernor.release(reservedMemory);
+		}
+	}
+
+	/*
+	 * Writes one output, as an entry of the output archive or as a file of the
+	 * output directory. Returns the bytes written.
+	 */
+	private long write(ZipOutputStream zipOut, String outputName, Content content) throws Exception {
+		if (zipOut == null) {
+			output.mkdirs();
+			try (CountingOutputStream out = new CountingOutputStream(
+					new BufferedOutputStream(new FileOutputStream(new File(output, outputName))))) {
+				content.writeTo(out);
+				return out.count;
+			}
+		}
+		synchronized (zipOut) {
+			zipOut.putNextEntry(new ZipEntry(outputName));
+			CountingOutputStream out = new CountingOutputStream(zipOut);
+			content.writeTo(out);
+			zipOut.closeEntry();
+			return out.count;
+		}
+	}
+
+	/*
+	 * The text files to process, in name order: the .txt entries of the input
+	 * archive, or the files of the input directory.
+	 */
+	private List<Input> listInputs(ZipFile zipFile) throws IOException {
+		List<Input> inputs = new ArrayList<>();
+		if (zipFile == null) {
+			for (File file : ShardedLayout.listInputFiles(input)) {
+				inputs.add(new Input(file.getName(), file.length(), null, file));
+			}
+			return inputs;
+		}
+		Enumeration<? extends ZipEntry> entries = zipFile.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			if (!entry.isDirectory() && entry.getName().endsWith(".txt")) {
+				inputs.add(new Input(entry.getName(), Math.max(0, entry.getSize()), entry, null));
+			}
+		}
+		inputs.sort(Comparator.comparing(Input::name));
+		return inputs;
+	}
+
+	/*
+	 * Runs the worker on the worker threads and waits for them all to finish.
+	 */
+	private void runWorkers(Runnable worker, int inputCount) throws IOException {
+		int count = Math.min(Metrics.get().threadsOr(threads), Math.max(1, inputCount));
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Thread thread = new Thread(worker, outputPrefix + "-zip-worker-" + i);
+			workers.add(thread);
+			thread.start();
+		}
+		try {
+			for (Thread thread : workers) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the entries to finish");
+		}
+	}
+
+	/*
+	 * The output archive while it is being written, next to where it goes.
+	 */
+	private File temporaryOutput() {
+		return new File(output.getAbsoluteFile().getParentFile(), "." + output.getName() + ".tmp");
+	}
+
+	/*
+	 * Counts the bytes written through it. Closing it closes the stream it wraps,
+	 * so it is not closed around the output archive.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+}